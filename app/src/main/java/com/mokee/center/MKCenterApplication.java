@@ -22,6 +22,7 @@ import android.app.Activity;
 import android.app.ActivityThread;
 import android.app.Application;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.os.Bundle;
 import android.text.TextUtils;
 
@@ -30,6 +31,7 @@ import com.lzy.okgo.interceptor.HttpLoggingInterceptor;
 import com.lzy.okgo.model.HttpHeaders;
 import com.mokee.center.activity.MainActivity;
 import com.mokee.center.model.DonationInfo;
+import com.mokee.center.util.BuildInfoUtil;
 import com.mokee.center.util.IntentUtil;
 
 import java.util.concurrent.TimeUnit;
@@ -80,6 +82,12 @@ public class MKCenterApplication extends Application implements
         initJPush();
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        BuildInfoUtil.clearDisplayVersions();
+    }
+
     private void initJPush() {
         JPushInterface.setDebugMode(BuildConfig.DEBUG);
         JPushInterface.init(this);
@@ -19,43 +19,66 @@ package com.mokee.center.controller;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.UpdateEngine;
-import android.os.UpdateEngineCallback;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.lzy.okgo.OkGo;
+import com.lzy.okgo.utils.HttpUtils;
 import com.mokee.center.misc.Constants;
+import com.mokee.center.model.PackageMetadata;
 import com.mokee.center.model.UpdateInfo;
 import com.mokee.center.model.UpdateStatus;
-import com.mokee.center.util.FileUtil;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Executor;
 
 import androidx.preference.PreferenceManager;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
 
 class ABUpdateInstaller {
 
+    /**
+     * What the installer needs from {@link UpdaterController}, the same way
+     * {@link PayloadEngine} stands for update_engine.
+     */
+    interface Host {
+        UpdateInfo getUpdate(String downloadId);
+
+        PackageMetadata getPackageMetadata(String downloadId) throws IOException;
+
+        /**
+         * @return a request for the first byte of a package, made the way it would be
+         * downloaded, to find out whether it can be streamed
+         */
+        Call newStreamProbe(String downloadId);
+
+        void startDownload(String downloadId);
+
+        void notifyUpdateChange(String downloadId);
+
+        void notifyInstallProgress(String downloadId);
+    }
+
     private static final String TAG = "ABUpdateInstaller";
 
     private static final String PREF_INSTALLING_AB_ID = "installing_ab_id";
 
     private static ABUpdateInstaller sInstance = null;
 
-    private final UpdaterController mUpdaterController;
+    private final Host mUpdaterController;
     private final Context mContext;
     private String mDownloadId;
 
-    private UpdateEngine mUpdateEngine;
+    private final PayloadEngine mUpdateEngine;
     private boolean mBound;
 
-    private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
+    private final OkHttpClient mHttpClient;
+    private final Executor mWorkerExecutor;
+    private final Executor mMainExecutor;
+
+    private final PayloadEngine.Callback mUpdateEngineCallback = new PayloadEngine.Callback() {
 
         @Override
         public void onStatusUpdate(int status, float percent) {
@@ -127,16 +150,22 @@ class ABUpdateInstaller {
         return TextUtils.equals(waitingId, downloadId);
     }
 
-    private ABUpdateInstaller(Context context, UpdaterController updaterController) {
+    ABUpdateInstaller(Context context, Host updaterController, PayloadEngine updateEngine,
+                      OkHttpClient httpClient, Executor workerExecutor, Executor mainExecutor) {
         mUpdaterController = updaterController;
         mContext = context.getApplicationContext();
-        mUpdateEngine = new UpdateEngine();
+        mUpdateEngine = updateEngine;
+        mHttpClient = httpClient;
+        mWorkerExecutor = workerExecutor;
+        mMainExecutor = mainExecutor;
     }
 
     static synchronized ABUpdateInstaller getInstance(Context context,
                                                       UpdaterController updaterController) {
         if (sInstance == null) {
-            sInstance = new ABUpdateInstaller(context, updaterController);
+            sInstance = new ABUpdateInstaller(context, updaterController, new SystemPayloadEngine(),
+                    OkGo.getInstance().getOkHttpClient(), runnable -> new Thread(runnable).start(),
+                    HttpUtils::runOnUiThread);
         }
         return sInstance;
     }
@@ -158,23 +187,12 @@ class ABUpdateInstaller {
             return false;
         }
 
-        long offset;
-        String[] headerKeyValuePairs;
+        PackageMetadata metadata;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = FileUtil.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+            metadata = mUpdaterController.getPackageMetadata(mDownloadId);
+            if (!metadata.isABUpdate()) {
+                throw new IllegalArgumentException("Not an A/B update");
             }
-            zipFile.close();
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getUpdate(mDownloadId)
@@ -183,6 +201,44 @@ class ABUpdateInstaller {
             return false;
         }
 
+        return applyPayload(downloadId, "file://" + file.getAbsolutePath(), metadata.getPayloadOffset(),
+                metadata.getPayloadSize(), metadata.getPayloadProperties());
+    }
+
+    /**
+     * Installs an update straight from the server: update_engine downloads the payload
+     * and applies it on the fly, nothing is stored in the download folder. Falls back
+     * to a regular download when the package cannot be streamed.
+     */
+    public void installStreaming(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return;
+        }
+        Call probe = mUpdaterController.newStreamProbe(downloadId);
+        mWorkerExecutor.execute(() -> {
+            PayloadStreamResolver.Payload payload;
+            try {
+                payload = PayloadStreamResolver.resolve(probe, mHttpClient);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Could not stream " + downloadId + ", downloading it instead", e);
+                mMainExecutor.execute(() -> mUpdaterController.startDownload(downloadId));
+                return;
+            }
+            mMainExecutor.execute(() -> {
+                if (isInstallingUpdate(mContext)) {
+                    Log.e(TAG, "Already installing an update");
+                    return;
+                }
+                applyPayload(downloadId, payload.getUrl(), payload.getOffset(), payload.getSize(),
+                        payload.getHeaders());
+            });
+        });
+    }
+
+    private boolean applyPayload(String downloadId, String url, long offset, long size, String[] headers) {
+        mDownloadId = downloadId;
+
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
@@ -198,8 +254,7 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        mUpdateEngine.applyPayload(url, offset, size, headers);
 
         mUpdaterController.getUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
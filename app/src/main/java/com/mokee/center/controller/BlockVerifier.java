@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.lzy.okgo.OkGo;
+import com.mokee.center.model.BlockManifest;
+import com.mokee.center.model.DownloadState.Segment;
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.util.FileUtil;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Response;
+
+/**
+ * Checks update packages block by block against their {@link BlockManifest}, so a
+ * corrupt download only needs the failing blocks fetched again.
+ */
+class BlockVerifier {
+
+    private static final String TAG = "BlockVerifier";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Returns the manifest of the given update, fetching it the first time. Does network
+     * and disk I/O, never call it from the main thread.
+     *
+     * @return the manifest, or null if the build has none or it could not be loaded
+     */
+    static BlockManifest loadManifest(Context context, UpdateInfo updateInfo) {
+        if (updateInfo == null || TextUtils.isEmpty(updateInfo.getBlockManifestUrl())) {
+            return null;
+        }
+        File cachedManifest = FileUtil.getBlockManifestFile(context, updateInfo.getName());
+        if (cachedManifest.exists()) {
+            try {
+                return BlockManifest.fromJson(new String(Files.readAllBytes(cachedManifest.toPath()),
+                        StandardCharsets.UTF_8));
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Discarding unreadable manifest of " + updateInfo.getName(), e);
+                cachedManifest.delete();
+            }
+        }
+        try (Response response = OkGo.<String>get(updateInfo.getBlockManifestUrl()).execute()) {
+            if (!response.isSuccessful()) {
+                Log.e(TAG, "Could not fetch manifest of " + updateInfo.getName() + ": " + response.code());
+                return null;
+            }
+            String json = response.body().string();
+            BlockManifest manifest = BlockManifest.fromJson(json);
+            try (FileOutputStream outputStream = new FileOutputStream(cachedManifest)) {
+                outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+            return manifest;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not load manifest of " + updateInfo.getName(), e);
+            return null;
+        }
+    }
+
+    static boolean verifyBlock(FileChannel channel, BlockManifest manifest, int index,
+                               ByteBuffer buffer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = manifest.newDigest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long position = manifest.getBlockStart(index);
+        long end = manifest.getBlockEnd(index);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return false;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return manifest.matches(index, digest.digest());
+    }
+
+    /**
+     * @return the indexes of all the blocks of the file that do not match the manifest
+     */
+    static List<Integer> findCorruptBlocks(File file, BlockManifest manifest) throws IOException {
+        List<Integer> corruptBlocks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            for (int i = 0; i < manifest.getBlockCount(); i++) {
+                if (!verifyBlock(channel, manifest, i, buffer)) {
+                    corruptBlocks.add(i);
+                }
+            }
+        }
+        return corruptBlocks;
+    }
+
+    /**
+     * @return whether every block overlapping the given ranges matches the manifest
+     */
+    static boolean verifyRanges(File file, BlockManifest manifest, List<Segment> ranges) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            for (Segment range : ranges) {
+                int first = (int) (range.getStart() / manifest.getBlockSize());
+                int last = (int) ((range.getEnd() - 1) / manifest.getBlockSize());
+                for (int i = first; i <= last; i++) {
+                    if (!verifyBlock(channel, manifest, i, buffer)) {
+                        Log.e(TAG, "Block " + i + " of " + file.getName() + " is still corrupt");
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not verify " + file, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.text.TextUtils;
+
+import com.mokee.center.model.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What changed between two update lists, matched by name in a single hashed pass.
+ * An update is changed when the server now describes the same build differently,
+ * e.g. with another URL or checksum.
+ */
+public class CatalogDiff {
+
+    private final List<UpdateInfo> mAdded;
+    private final List<UpdateInfo> mChanged;
+    private final List<String> mRemoved;
+
+    private CatalogDiff(List<UpdateInfo> added, List<UpdateInfo> changed, List<String> removed) {
+        mAdded = Collections.unmodifiableList(added);
+        mChanged = Collections.unmodifiableList(changed);
+        mRemoved = Collections.unmodifiableList(removed);
+    }
+
+    public static CatalogDiff compute(Collection<UpdateInfo> current, Collection<UpdateInfo> fetched) {
+        Map<String, UpdateInfo> currentByName = new HashMap<>(current.size() * 2);
+        for (UpdateInfo update : current) {
+            currentByName.put(update.getName(), update);
+        }
+
+        List<UpdateInfo> added = new ArrayList<>();
+        List<UpdateInfo> changed = new ArrayList<>();
+        for (UpdateInfo update : fetched) {
+            UpdateInfo old = currentByName.remove(update.getName());
+            if (old == null) {
+                added.add(update);
+            } else if (!isSameRelease(old, update)) {
+                changed.add(update);
+            }
+        }
+        // Whatever was not matched is gone
+        return new CatalogDiff(added, changed, new ArrayList<>(currentByName.keySet()));
+    }
+
+    private static boolean isSameRelease(UpdateInfo a, UpdateInfo b) {
+        return a.getFileSize() == b.getFileSize()
+                && a.getDiffSize() == b.getDiffSize()
+                && a.getTimestamp() == b.getTimestamp()
+                && a.getRollout() == b.getRollout()
+                && TextUtils.equals(a.getMd5(), b.getMd5())
+                && TextUtils.equals(a.getDownloadUrl(), b.getDownloadUrl())
+                && TextUtils.equals(a.getBlockManifestUrl(), b.getBlockManifestUrl())
+                && TextUtils.equals(a.getChangelogUrl(), b.getChangelogUrl());
+    }
+
+    public List<UpdateInfo> getAdded() {
+        return mAdded;
+    }
+
+    public List<UpdateInfo> getChanged() {
+        return mChanged;
+    }
+
+    public List<String> getRemoved() {
+        return mRemoved;
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mChanged.isEmpty() && mRemoved.isEmpty();
+    }
+}
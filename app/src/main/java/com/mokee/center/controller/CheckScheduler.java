@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to look for updates next.
+ * <p>
+ * Builds come out at roughly the same times of day, so the build timestamps of the
+ * update list tell when a new build is likely. They are counted per half hour of the
+ * local day, newer builds weighing more, and the half hours at least half as busy as
+ * the busiest one form the release windows. A check is planned shortly after the end of
+ * the next window, once the packages have reached the mirrors, at the offset of the
+ * device into the following hour so that not all devices check at once. Without any
+ * history the list is checked once a day.
+ * <p>
+ * Failed checks are retried with an exponentially growing delay, of which a random
+ * half is waited so that devices which failed together do not retry together.
+ * <p>
+ * Everything is computed from the given clock, so a fixed clock replays any situation.
+ */
+public class CheckScheduler {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static final int SLOT_MINUTES = 30;
+    private static final int SLOTS = 24 * 60 / SLOT_MINUTES;
+    // The weight of a build halves with every two weeks it is older than the newest one
+    private static final long HALF_LIFE = 14 * DAY;
+    private static final double WINDOW_SHARE = 0.5;
+    // Time for a new build to reach the mirrors
+    private static final long CHECK_DELAY = 30 * MINUTE;
+    private static final long CHECK_SPREAD = HOUR;
+    private static final long MIN_INTERVAL = 2 * HOUR;
+    private static final long DEFAULT_INTERVAL = DAY;
+
+    private static final long RETRY_DELAY = 15 * MINUTE;
+    private static final long MAX_RETRY_DELAY = 12 * HOUR;
+
+    private final Clock mClock;
+    private final Random mRandom;
+    private final ClientBucket mBucket;
+
+    public CheckScheduler(Clock clock, Random random, ClientBucket bucket) {
+        mClock = clock;
+        mRandom = random;
+        mBucket = bucket;
+    }
+
+    /**
+     * @param buildTimestamps build times of the listed updates in seconds, in any order
+     *                        and possibly repeated
+     * @return when to check next, in milliseconds since the epoch
+     */
+    public long getNextCheck(long[] buildTimestamps) {
+        long now = mClock.millis();
+        double[] weights = getWeights(buildTimestamps);
+        double max = 0;
+        for (double weight : weights) {
+            max = Math.max(max, weight);
+        }
+        if (max == 0) {
+            return now + DEFAULT_INTERVAL;
+        }
+
+        ZoneId zone = mClock.getZone();
+        LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        long earliest = now + MIN_INTERVAL;
+        long next = Long.MAX_VALUE;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            boolean inWindow = weights[slot] >= max * WINDOW_SHARE;
+            boolean nextInWindow = weights[(slot + 1) % SLOTS] >= max * WINDOW_SHARE;
+            if (!inWindow || nextInWindow) {
+                continue;
+            }
+            // The check of a window late in the evening may fall on the next day
+            long offset = (slot + 1) * SLOT_MINUTES * MINUTE + CHECK_DELAY
+                    + mBucket.getOffset(CHECK_SPREAD);
+            for (int day = -1; day <= 2; day++) {
+                long check = today.plusDays(day).atStartOfDay().plus(offset, ChronoUnit.MILLIS)
+                        .atZone(zone).toInstant().toEpochMilli();
+                if (check >= earliest) {
+                    next = Math.min(next, check);
+                    break;
+                }
+            }
+        }
+        return next == Long.MAX_VALUE ? now + DEFAULT_INTERVAL : next;
+    }
+
+    /**
+     * @param failures how many checks in a row failed, including the last one
+     * @return when to retry, in milliseconds since the epoch
+     */
+    public long getRetry(int failures) {
+        int doublings = Math.min(Math.max(failures, 1) - 1, 16);
+        long delay = Math.min(RETRY_DELAY << doublings, MAX_RETRY_DELAY);
+        return mClock.millis() + delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    private double[] getWeights(long[] buildTimestamps) {
+        double[] weights = new double[SLOTS];
+        if (buildTimestamps.length == 0) {
+            return weights;
+        }
+        // Full and incremental packages of a build share its timestamp
+        long[] timestamps = buildTimestamps.clone();
+        Arrays.sort(timestamps);
+        long newest = TimeUnit.SECONDS.toMillis(timestamps[timestamps.length - 1]);
+        ZoneId zone = mClock.getZone();
+        for (int i = 0; i < timestamps.length; i++) {
+            if (timestamps[i] <= 0 || (i > 0 && timestamps[i] == timestamps[i - 1])) {
+                continue;
+            }
+            long millis = TimeUnit.SECONDS.toMillis(timestamps[i]);
+            double weight = Math.pow(0.5, (double) (newest - millis) / HALF_LIFE);
+            int slot = Instant.ofEpochMilli(millis).atZone(zone).toLocalTime().toSecondOfDay()
+                    / (SLOT_MINUTES * 60);
+            // Releases drift a little, so the neighbouring half hours get a share too
+            weights[slot] += weight;
+            weights[(slot + 1) % SLOTS] += weight / 2;
+            weights[(slot + SLOTS - 1) % SLOTS] += weight / 2;
+        }
+        return weights;
+    }
+}
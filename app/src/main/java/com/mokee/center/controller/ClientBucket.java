@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Spreads the background work of all devices evenly, so a new build does not bring
+ * every device to the server at once.
+ * <p>
+ * The bucket is derived from the unique ID of the device, so a device always lands in
+ * the same place: it checks at the same offset into every window, downloads in the
+ * same slot and is always among the first devices of a staged rollout or never.
+ */
+public class ClientBucket {
+
+    // Two independent halves of the hash: one for the rollout, one for offsets
+    private final long mRolloutHash;
+    private final long mOffsetHash;
+
+    public ClientBucket(String clientId) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256")
+                    .digest(String.valueOf(clientId).getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide SHA-256
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        mRolloutHash = buffer.getInt() & 0xffffffffL;
+        mOffsetHash = buffer.getInt() & 0xffffffffL;
+    }
+
+    /**
+     * @return the percentile of the device among all devices, from 0 to 99
+     */
+    public int getPercentile() {
+        return (int) ((mRolloutHash * 100) >>> 32);
+    }
+
+    /**
+     * @param percentage share of the devices a build is rolled out to, from 0 to 100
+     */
+    public boolean isInRollout(int percentage) {
+        return getPercentile() < percentage;
+    }
+
+    /**
+     * @return how long into a period of the given length this device should wait
+     */
+    public long getOffset(long spread) {
+        return (long) (mOffsetHash / (double) (1L << 32) * spread);
+    }
+}
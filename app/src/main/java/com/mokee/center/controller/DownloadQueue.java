@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.text.format.DateUtils;
+
+import com.mokee.center.misc.State;
+import com.mokee.center.model.QueuedDownload;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The downloads the user asked for, in the order they should run. Every change is
+ * written to disk right away, so the queue outlives the process.
+ */
+class DownloadQueue {
+
+    private final File mFile;
+    private final Map<String, QueuedDownload> mEntries = new HashMap<>();
+    private long mNextSequence;
+
+    DownloadQueue(File file) {
+        mFile = file;
+        for (QueuedDownload entry : State.loadDownloadQueue(file)) {
+            mEntries.put(entry.getDownloadId(), entry);
+            mNextSequence = Math.max(mNextSequence, entry.getSequence() + 1);
+        }
+    }
+
+    QueuedDownload get(String downloadId) {
+        return mEntries.get(downloadId);
+    }
+
+    /**
+     * Adds or replaces an entry. A replaced entry keeps its place among the
+     * entries of the same priority.
+     */
+    void put(QueuedDownload entry) {
+        QueuedDownload previous = mEntries.get(entry.getDownloadId());
+        entry.setSequence(previous != null ? previous.getSequence() : mNextSequence++);
+        mEntries.put(entry.getDownloadId(), entry);
+        save();
+    }
+
+    void remove(String downloadId) {
+        if (mEntries.remove(downloadId) != null) {
+            save();
+        }
+    }
+
+    /**
+     * @return the entries by decreasing priority, then in the order they were queued
+     */
+    List<QueuedDownload> getOrdered() {
+        List<QueuedDownload> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, (o1, o2) -> o1.getPriority() != o2.getPriority()
+                ? Integer.compare(o2.getPriority(), o1.getPriority())
+                : Long.compare(o1.getSequence(), o2.getSequence()));
+        return entries;
+    }
+
+    void save() {
+        State.saveDownloadQueue(new ArrayList<>(mEntries.values()), mFile);
+    }
+
+    /**
+     * Device conditions at one point in time, checked against the constraints of
+     * the queued entries.
+     */
+    static class Conditions {
+
+        private final boolean mUnmetered;
+        private final boolean mCharging;
+        private final boolean mIdle;
+        private final int mMinuteOfDay;
+
+        Conditions(boolean unmetered, boolean charging, boolean idle, int minuteOfDay) {
+            mUnmetered = unmetered;
+            mCharging = charging;
+            mIdle = idle;
+            mMinuteOfDay = minuteOfDay;
+        }
+
+        static Conditions current(Context context) {
+            ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+            BatteryManager batteryManager = context.getSystemService(BatteryManager.class);
+            PowerManager powerManager = context.getSystemService(PowerManager.class);
+            Calendar calendar = Calendar.getInstance();
+            return new Conditions(!connectivityManager.isActiveNetworkMetered(),
+                    batteryManager.isCharging(),
+                    !powerManager.isInteractive(),
+                    calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE));
+        }
+
+        boolean allow(QueuedDownload entry) {
+            if (entry.hasConstraint(QueuedDownload.CONSTRAINT_UNMETERED) && !mUnmetered) {
+                return false;
+            }
+            if (entry.hasConstraint(QueuedDownload.CONSTRAINT_CHARGING) && !mCharging) {
+                return false;
+            }
+            if (entry.hasConstraint(QueuedDownload.CONSTRAINT_IDLE) && !mIdle) {
+                return false;
+            }
+            return entry.isInWindow(mMinuteOfDay);
+        }
+
+        /**
+         * @return the time until the next window of the given entries opens or
+         * closes, or -1 if none of them has a window
+         */
+        long getNextWindowChange(List<QueuedDownload> entries) {
+            long next = -1;
+            for (QueuedDownload entry : entries) {
+                if (entry.isPaused() || !entry.hasWindow()) {
+                    continue;
+                }
+                int boundary = entry.isInWindow(mMinuteOfDay) ? entry.getWindowEnd() : entry.getWindowStart();
+                int minutes = (boundary - mMinuteOfDay + 24 * 60) % (24 * 60);
+                long delay = Math.max(minutes, 1) * DateUtils.MINUTE_IN_MILLIS;
+                if (next < 0 || delay < next) {
+                    next = delay;
+                }
+            }
+            return next;
+        }
+    }
+}
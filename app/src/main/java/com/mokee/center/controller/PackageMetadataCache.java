@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mokee.center.misc.Constants;
+import com.mokee.center.misc.State;
+import com.mokee.center.model.PackageMetadata;
+import com.mokee.center.util.FileUtil;
+import com.mokee.center.util.ZipIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Package metadata by download ID, kept in memory and next to the other cached files.
+ * Entries that no longer match their file are read again from the zip.
+ */
+class PackageMetadataCache {
+
+    private static final String TAG = "PackageMetadataCache";
+
+    private static final int PAYLOAD_PROPERTIES_MAX_SIZE = 64 * 1024;
+
+    private final Context mContext;
+    private final Map<String, PackageMetadata> mMetadata = new HashMap<>();
+
+    PackageMetadataCache(Context context) {
+        mContext = context;
+    }
+
+    synchronized PackageMetadata get(String downloadId, File file) throws IOException {
+        PackageMetadata metadata = mMetadata.get(downloadId);
+        if (metadata == null) {
+            metadata = State.loadPackageMetadata(FileUtil.getPackageMetadataFile(mContext, downloadId));
+        }
+        if (metadata == null || !metadata.matches(file)) {
+            Log.d(TAG, "Reading the metadata of " + downloadId);
+            return put(downloadId, file, false);
+        }
+        mMetadata.put(downloadId, metadata);
+        return metadata;
+    }
+
+    /**
+     * Reads the metadata of a package and stores it.
+     *
+     * @param verified whether the package has just passed verification
+     */
+    synchronized PackageMetadata put(String downloadId, File file, boolean verified) throws IOException {
+        PackageMetadata metadata = read(file, verified);
+        mMetadata.put(downloadId, metadata);
+        State.savePackageMetadata(metadata, FileUtil.getPackageMetadataFile(mContext, downloadId));
+        return metadata;
+    }
+
+    synchronized void remove(String downloadId) {
+        mMetadata.remove(downloadId);
+        FileUtil.getPackageMetadataFile(mContext, downloadId).delete();
+    }
+
+    private static PackageMetadata read(File file, boolean verified) throws IOException {
+        ZipIndex zipIndex = ZipIndex.get(file);
+        PackageMetadata.Builder builder = new PackageMetadata.Builder()
+                .setFile(file)
+                .setVerified(verified);
+        if (zipIndex.hasEntries(Constants.AB_PAYLOAD_BIN_PATH, Constants.AB_PAYLOAD_PROPERTIES_PATH)) {
+            builder.setABUpdate(true)
+                    .setPayload(zipIndex.getDataOffset(Constants.AB_PAYLOAD_BIN_PATH),
+                            zipIndex.getEntry(Constants.AB_PAYLOAD_BIN_PATH).getCompressedSize())
+                    .setPayloadProperties(readPayloadProperties(zipIndex).toArray(new String[0]));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the non-empty lines of payload_properties.txt
+     */
+    static List<String> readPayloadProperties(ZipIndex zipIndex) throws IOException {
+        byte[] payloadProperties = zipIndex.readEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH,
+                PAYLOAD_PROPERTIES_MAX_SIZE);
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(payloadProperties, StandardCharsets.UTF_8).split("\\r?\\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+/**
+ * What {@link ABUpdateInstaller} needs from update_engine. Status and error codes are
+ * the ones of {@link android.os.UpdateEngine}.
+ */
+interface PayloadEngine {
+
+    interface Callback {
+        void onStatusUpdate(int status, float percent);
+
+        void onPayloadApplicationComplete(int errorCode);
+    }
+
+    boolean bind(Callback callback);
+
+    /**
+     * @param url     a file:// URI of a local package, or the http(s) URL of a remote one
+     * @param offset  the offset of payload.bin inside the package
+     * @param size    the size of payload.bin
+     * @param headers the payload properties, plus request headers for remote packages
+     */
+    void applyPayload(String url, long offset, long size, String[] headers);
+
+    void cancel();
+
+    void setPerformanceMode(boolean enable);
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.util.Log;
+
+import com.lzy.okgo.model.HttpHeaders;
+import com.mokee.center.misc.Constants;
+import com.mokee.center.util.ZipIndex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Finds payload.bin inside a package that is still on the server, so update_engine
+ * can download and apply it in one pass.
+ * <p>
+ * update_engine can only send plain GET requests. Packages that are handed out
+ * through a POST are streamable only when the server redirects to a GET-able URL,
+ * which is what the probe request finds out.
+ */
+class PayloadStreamResolver {
+
+    private static final String TAG = "PayloadStreamResolver";
+
+    static class Payload {
+        private final String mUrl;
+        private final long mOffset;
+        private final long mSize;
+        private final String[] mHeaders;
+
+        private Payload(String url, long offset, long size, String[] headers) {
+            mUrl = url;
+            mOffset = offset;
+            mSize = size;
+            mHeaders = headers;
+        }
+
+        String getUrl() {
+            return mUrl;
+        }
+
+        long getOffset() {
+            return mOffset;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return the payload properties followed by the request headers update_engine
+         * has to send, in its KEY=value form
+         */
+        String[] getHeaders() {
+            return mHeaders;
+        }
+    }
+
+    private static class HttpSource implements ZipIndex.Source {
+        private final OkHttpClient mClient;
+        private final HttpUrl mUrl;
+        private final long mSize;
+
+        HttpSource(OkHttpClient client, HttpUrl url, long size) {
+            mClient = client;
+            mUrl = url;
+            mSize = size;
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public void readFully(ByteBuffer buffer, long position) throws IOException {
+            long last = position + buffer.remaining() - 1;
+            Request request = new Request.Builder()
+                    .url(mUrl)
+                    .header(HttpHeaders.HEAD_KEY_USER_AGENT, Constants.USER_AGENT)
+                    .header(HttpHeaders.HEAD_KEY_RANGE, "bytes=" + position + "-" + last)
+                    .build();
+            try (Response response = mClient.newCall(request).execute()) {
+                if (response.code() != 206) {
+                    throw new IOException("Range request failed with " + response.code());
+                }
+                byte[] chunk = new byte[8192];
+                try (InputStream in = response.body().byteStream()) {
+                    while (buffer.hasRemaining()) {
+                        int read = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+                        if (read < 0) {
+                            throw new IOException("Short range response");
+                        }
+                        buffer.put(chunk, 0, read);
+                    }
+                }
+            }
+        }
+    }
+
+    private PayloadStreamResolver() {
+    }
+
+    /**
+     * @param probe  a request for the first byte of the package, as it would be downloaded
+     * @param client the client to read the package index with
+     * @return where update_engine can stream the payload from
+     * @throws IOException if the package cannot be streamed
+     */
+    static Payload resolve(Call probe, OkHttpClient client) throws IOException {
+        HttpUrl url;
+        long size;
+        try (Response response = probe.execute()) {
+            if (response.code() != 206 || !"GET".equals(response.request().method())) {
+                throw new IOException("Package cannot be fetched with range requests");
+            }
+            url = response.request().url();
+            // Content-Range: bytes 0-0/<total>
+            String contentRange = response.header("Content-Range");
+            if (contentRange == null || contentRange.indexOf('/') < 0) {
+                throw new IOException("No package size in " + contentRange);
+            }
+            try {
+                size = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("No package size in " + contentRange);
+            }
+        }
+
+        ZipIndex zipIndex = ZipIndex.read(new HttpSource(client, url, size));
+        if (!zipIndex.hasEntries(Constants.AB_PAYLOAD_BIN_PATH, Constants.AB_PAYLOAD_PROPERTIES_PATH)) {
+            throw new IOException("Not an A/B update");
+        }
+        ZipIndex.Entry payload = zipIndex.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+        if (!payload.isStored()) {
+            throw new IOException("Compressed payload cannot be streamed");
+        }
+
+        List<String> headers = PackageMetadataCache.readPayloadProperties(zipIndex);
+        headers.add("USER_AGENT=" + Constants.USER_AGENT);
+        Log.d(TAG, "Streaming payload from " + url.host());
+        return new Payload(url.toString(), zipIndex.getDataOffset(Constants.AB_PAYLOAD_BIN_PATH),
+                payload.getCompressedSize(), headers.toArray(new String[0]));
+    }
+}
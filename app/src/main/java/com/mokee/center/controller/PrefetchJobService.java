@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.lzy.okgo.model.Progress;
+import com.mokee.center.model.QueuedDownload;
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.util.CommonUtil;
+
+/**
+ * Downloads a new build in the background while the device is idle, charging and on
+ * an unmetered network, so it is ready to install when the user opens the app.
+ * <p>
+ * Devices start at their own offset into the few hours after a build was found, so
+ * they do not all download it at the same time.
+ * <p>
+ * The download itself goes through the download queue with the same network, charging
+ * and idle constraints, idle meaning the screen is off. It stops as soon as one of them
+ * goes away, whether the job is still running or not. The job only ends once the package
+ * has been downloaded and verified.
+ */
+public class PrefetchJobService extends JobService {
+
+    private static final String TAG = "PrefetchJobService";
+
+    private static final int JOB_ID = 1001;
+    private static final String EXTRA_DOWNLOAD_ID = "download_id";
+    private static final long PREFETCH_SPREAD = 6 * DateUtils.HOUR_IN_MILLIS;
+
+    private UpdaterController mUpdaterController;
+    private JobParameters mParams;
+    private String mDownloadId;
+
+    private final UpdateEventBus.Subscriber mEventSubscriber = new UpdateEventBus.Subscriber() {
+
+        @Override
+        public void onUpdateStatusChanged(UpdateInfo update) {
+            Progress progress = update.getProgress();
+            if (!update.getName().equals(mDownloadId) || progress == null) {
+                return;
+            }
+            if (progress.status == Progress.FINISH) {
+                Log.d(TAG, mDownloadId + " is ready");
+                finish(false);
+            } else if (progress.status == Progress.ERROR) {
+                // A package that fails verification will not get any better on retry
+                finish(!(progress.exception instanceof UnsupportedOperationException));
+            }
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateInfo update) {
+        }
+
+        @Override
+        public void onInstallProgress(UpdateInfo update) {
+        }
+
+        @Override
+        public void onUpdateRemoved(String downloadId) {
+            if (downloadId.equals(mDownloadId)) {
+                finish(false);
+            }
+        }
+    };
+
+    public static void schedule(Context context, String downloadId) {
+        long latency = CommonUtil.getClientBucket(context).getOffset(PREFETCH_SPREAD);
+        Log.d(TAG, "Scheduling prefetch of " + downloadId + " in " + latency / DateUtils.MINUTE_IN_MILLIS + " minutes");
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_DOWNLOAD_ID, downloadId);
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID, new ComponentName(context, PrefetchJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setMinimumLatency(latency)
+                .setPersisted(true)
+                .setExtras(extras)
+                .build();
+        context.getSystemService(JobScheduler.class).schedule(jobInfo);
+    }
+
+    public static void cancel(Context context) {
+        context.getSystemService(JobScheduler.class).cancel(JOB_ID);
+    }
+
+    /**
+     * Cancels the prefetch if it is for the given update.
+     */
+    static void cancel(Context context, String downloadId) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        JobInfo jobInfo = jobScheduler.getPendingJob(JOB_ID);
+        if (jobInfo != null && downloadId.equals(jobInfo.getExtras().getString(EXTRA_DOWNLOAD_ID))) {
+            jobScheduler.cancel(JOB_ID);
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mDownloadId = params.getExtras().getString(EXTRA_DOWNLOAD_ID);
+        if (TextUtils.isEmpty(mDownloadId)) {
+            return false;
+        }
+        mUpdaterController = UpdaterController.getInstance(this);
+        UpdateInfo update = mUpdaterController.getUpdate(mDownloadId);
+        if (update == null) {
+            // Found by a check that ran after the controller loaded the cached list
+            UpdateInfo cached = UpdateCatalog.getInstance(this).getSnapshot().getUpdate(mDownloadId);
+            if (cached != null) {
+                mUpdaterController.addUpdate(cached);
+            }
+            update = mUpdaterController.getUpdate(mDownloadId);
+        }
+        if (update == null || mUpdaterController.isInstallingUpdate()) {
+            Log.d(TAG, "Not prefetching " + mDownloadId);
+            return false;
+        }
+        Progress progress = update.getProgress();
+        if (progress != null && progress.status == Progress.FINISH) {
+            return false;
+        }
+
+        QueuedDownload entry = mUpdaterController.getQueuedDownload(mDownloadId);
+        if (entry != null && entry.isPaused()) {
+            Log.d(TAG, mDownloadId + " was paused by the user, not prefetching");
+            return false;
+        }
+
+        mParams = params;
+        mUpdaterController.getEventBus().subscribe(mEventSubscriber, DateUtils.MINUTE_IN_MILLIS);
+        if (entry != null) {
+            // Already on its way, possibly started by the user. Without the service
+            // around nobody retried it if it failed last time.
+            if (progress != null && progress.status == Progress.ERROR) {
+                mUpdaterController.resumeDownload(mDownloadId);
+            } else {
+                mUpdaterController.scheduleDownloads();
+            }
+            return true;
+        }
+        Log.d(TAG, "Prefetching " + mDownloadId);
+        mUpdaterController.enqueueDownload(new QueuedDownload.Builder()
+                .setDownloadId(mDownloadId)
+                .setPriority(QueuedDownload.PRIORITY_LOW)
+                .setConstraints(QueuedDownload.CONSTRAINT_UNMETERED | QueuedDownload.CONSTRAINT_CHARGING
+                        | QueuedDownload.CONSTRAINT_IDLE)
+                .build());
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Check the queue constraints right away rather than on the next broadcast, so the
+        // download stops together with the job. It continues once they are met again.
+        mUpdaterController.getEventBus().unsubscribe(mEventSubscriber);
+        mParams = null;
+        mUpdaterController.scheduleDownloads();
+        return true;
+    }
+
+    private void finish(boolean reschedule) {
+        mUpdaterController.getEventBus().unsubscribe(mEventSubscriber);
+        if (mParams != null) {
+            jobFinished(mParams, reschedule);
+            mParams = null;
+        }
+    }
+}
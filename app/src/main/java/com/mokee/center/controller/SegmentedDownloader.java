@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.lzy.okgo.exception.HttpException;
+import com.lzy.okgo.model.HttpHeaders;
+import com.lzy.okgo.model.Progress;
+import com.lzy.okgo.request.base.Request;
+import com.lzy.okgo.utils.HttpUtils;
+import com.lzy.okserver.download.DownloadListener;
+import com.lzy.okserver.download.DownloadTask;
+import com.mokee.center.model.BlockManifest;
+import com.mokee.center.model.DownloadState;
+import com.mokee.center.model.DownloadState.Segment;
+import com.mokee.center.util.ResumableMd5;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import okhttp3.Call;
+import okhttp3.Response;
+
+/**
+ * Downloads a {@link DownloadTask} over one or more connections. The file is split into
+ * fixed-size HTTP Range segments which the connections pick up in order, each one
+ * written at its own offset into the partial file. Segment positions are kept in
+ * {@code Progress.extra2}, so a paused download resumes every segment where it stopped.
+ * <p>
+ * The MD5 of the file is computed while it is written: bytes landing right at the end of
+ * the hashed prefix are hashed straight from the network buffer, and when the prefix
+ * reaches a segment that is already partly written, that part is read back once. The
+ * digest state is checkpointed with the segments, so resuming never rehashes the file.
+ * <p>
+ * With more than one connection most of the file is written ahead of the prefix and
+ * read back, from the page cache in practice. That costs one extra pass over the file,
+ * roughly what {@link ResumableMd5} needs to hash it (see HashBenchmark). It runs on
+ * whichever connection moved the prefix, outside the progress lock, while the other
+ * connections keep downloading and leave their bytes for it to pick up.
+ */
+class SegmentedDownloader {
+
+    private static final String TAG = "SegmentedDownloader";
+
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    // One lock per task, so a paused or restarted download has released the file
+    // before the next downloader of the same task touches it. A lock is dropped
+    // once no downloader of its task runs or waits any more.
+    private static final Map<String, TaskLock> sTaskLocks = new HashMap<>();
+
+    interface RequestFactory {
+        Request<File, ? extends Request> create();
+    }
+
+    interface ManifestLoader {
+        BlockManifest load();
+    }
+
+    private final DownloadTask mTask;
+    private final Progress mProgress;
+    private final RequestFactory mRequestFactory;
+    private final ManifestLoader mManifestLoader;
+    private final int mConnections;
+
+    private final List<Call> mCalls = new ArrayList<>();
+
+    private volatile boolean mPaused;
+    private volatile boolean mRemoved;
+    private volatile boolean mFallback;
+    private volatile boolean mRestart;
+    private volatile Throwable mError;
+
+    private DownloadState mState;
+    private FileChannel mChannel;
+    private final List<Segment> mPendingSegments = new ArrayList<>();
+    private int mNextSegment;
+    // Only the holder of the lock hashes, into its own digest whose copies are checkpointed
+    private final ReentrantLock mDigestLock = new ReentrantLock();
+    private ResumableMd5 mDigest;
+    private final byte[] mDigestBuffer = new byte[BUFFER_SIZE];
+
+    SegmentedDownloader(DownloadTask task, RequestFactory requestFactory,
+                        ManifestLoader manifestLoader, int connections) {
+        mTask = task;
+        mProgress = task.progress;
+        mRequestFactory = requestFactory;
+        mManifestLoader = manifestLoader;
+        mConnections = connections;
+    }
+
+    static boolean isSegmented(Progress progress) {
+        return progress.extra2 instanceof DownloadState;
+    }
+
+    void start() {
+        mProgress.status = Progress.WAITING;
+        postOnProgress();
+        final String tag = mProgress.tag;
+        sExecutor.execute(() -> {
+            TaskLock lock = acquireTaskLock(tag);
+            try {
+                synchronized (lock) {
+                    run();
+                }
+            } finally {
+                releaseTaskLock(tag, lock);
+            }
+        });
+    }
+
+    void restart() {
+        mRestart = true;
+        start();
+    }
+
+    /**
+     * Throws away everything downloaded so far, the next start begins from scratch.
+     */
+    private static void reset(Progress progress) {
+        synchronized (progress) {
+            progress.extra2 = null;
+            progress.currentSize = 0;
+            progress.fraction = 0;
+            progress.exception = null;
+        }
+        if (!TextUtils.isEmpty(progress.filePath)) {
+            new File(progress.filePath).delete();
+        }
+    }
+
+    private static TaskLock acquireTaskLock(String tag) {
+        synchronized (sTaskLocks) {
+            TaskLock lock = sTaskLocks.get(tag);
+            if (lock == null) {
+                lock = new TaskLock();
+                sTaskLocks.put(tag, lock);
+            }
+            lock.mUsers++;
+            return lock;
+        }
+    }
+
+    private static void releaseTaskLock(String tag, TaskLock lock) {
+        synchronized (sTaskLocks) {
+            if (--lock.mUsers == 0) {
+                // The task finished, failed, was paused or removed and nobody is waiting
+                sTaskLocks.remove(tag);
+            }
+        }
+    }
+
+    void pause() {
+        mPaused = true;
+        if (mFallback) {
+            mTask.pause();
+            return;
+        }
+        cancelCalls();
+    }
+
+    void remove() {
+        synchronized (mProgress) {
+            mRemoved = true;
+        }
+        pause();
+    }
+
+    private void run() {
+        if (mPaused) {
+            postPause();
+            return;
+        }
+        if (mRestart) {
+            reset(mProgress);
+        }
+        if (isSegmented(mProgress) && new File(mProgress.filePath).length()
+                < ((DownloadState) mProgress.extra2).getWrittenLength()) {
+            // The partial file is gone or was truncated, nothing can be resumed
+            mProgress.extra2 = null;
+            mProgress.currentSize = 0;
+        }
+        if (!isSegmented(mProgress)) {
+            long totalSize;
+            try {
+                totalSize = probeTotalSize();
+            } catch (IOException e) {
+                postOnError(mPaused ? null : e);
+                return;
+            }
+            if (totalSize <= 0) {
+                Log.d(TAG, mProgress.tag + ": ranges not supported, using a single connection");
+                mFallback = true;
+                if (!mPaused) {
+                    mTask.start();
+                } else {
+                    postPause();
+                }
+                return;
+            }
+            synchronized (mProgress) {
+                // A single connection streams the whole file in one request
+                mProgress.extra2 = new DownloadState(totalSize,
+                        mConnections > 1 ? SEGMENT_SIZE : totalSize);
+                mProgress.totalSize = totalSize;
+                mProgress.currentSize = 0;
+                ((DownloadState) mProgress.extra2).setChecked(true);
+            }
+            // Keep the manifest around in case the finished file turns out to be corrupt
+            mManifestLoader.load();
+        }
+        mState = (DownloadState) mProgress.extra2;
+        mError = null;
+
+        File file = new File(mProgress.filePath);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            mChannel = randomAccessFile.getChannel();
+            BlockManifest manifest = mState.isChecked() ? null : mManifestLoader.load();
+            synchronized (mProgress) {
+                checkWrittenBlocks(manifest);
+                collectPendingSegments();
+                mDigest = mState.getDigest().copy();
+            }
+            hashWrittenBytes();
+            postOnStart();
+            int connections = Math.max(Math.min(mConnections, mPendingSegments.size()), 1);
+            ExecutorService executor = Executors.newFixedThreadPool(connections);
+            for (int i = 0; i < connections; i++) {
+                executor.execute(this::runConnection);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (!mPaused && mError == null) {
+                hashWrittenBytes();
+            }
+        } catch (IOException e) {
+            mError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mPaused = true;
+        }
+
+        if (mPaused) {
+            postPause();
+        } else if (mError != null) {
+            postOnError(mError);
+        } else if (mState.isComplete()) {
+            postOnFinish(file);
+        } else {
+            postPause();
+        }
+    }
+
+    private long probeTotalSize() throws IOException {
+        Request<File, ? extends Request> request = mRequestFactory.create();
+        request.headers(HttpHeaders.HEAD_KEY_RANGE, "bytes=0-0");
+        Call call = request.getRawCall();
+        try (Response response = execute(call)) {
+            if (response == null || response.code() != 206) {
+                return -1;
+            }
+            // Content-Range: bytes 0-0/<total>
+            String contentRange = response.header("Content-Range");
+            if (contentRange == null || contentRange.indexOf('/') < 0) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        } finally {
+            synchronized (mCalls) {
+                mCalls.remove(call);
+            }
+        }
+    }
+
+    private void runConnection() {
+        Segment segment;
+        while (!mPaused && mError == null && (segment = nextSegment()) != null) {
+            try {
+                downloadSegment(segment);
+            } catch (IOException | HttpException e) {
+                if (!mPaused && mError == null) {
+                    Log.e(TAG, mProgress.tag + ": segment at " + segment.getStart() + " failed", e);
+                    mError = e;
+                    cancelCalls();
+                }
+            }
+        }
+    }
+
+    private void collectPendingSegments() {
+        mPendingSegments.clear();
+        mNextSegment = 0;
+        for (Segment segment : mState.getSegments()) {
+            if (!segment.isComplete()) {
+                mPendingSegments.add(segment);
+            }
+        }
+        for (Segment repair : mState.getRepairs()) {
+            if (!repair.isComplete()) {
+                mPendingSegments.add(repair);
+            }
+        }
+    }
+
+    private Segment nextSegment() {
+        synchronized (mProgress) {
+            return mNextSegment < mPendingSegments.size()
+                    ? mPendingSegments.get(mNextSegment++) : null;
+        }
+    }
+
+    /**
+     * An unclean shutdown can lose the last bytes written before it, while the saved
+     * positions still count them. When the state was just loaded from disk, check the
+     * blocks right behind each write position against the manifest and rewind the
+     * segment over the ones that do not match.
+     */
+    private void checkWrittenBlocks(BlockManifest manifest) throws IOException {
+        if (mState.isChecked()) {
+            return;
+        }
+        mState.setChecked(true);
+        if (manifest == null || manifest.getSize() != mState.getTotalSize()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        for (Segment segment : mState.getSegments()) {
+            if (segment.isComplete()) {
+                continue;
+            }
+            int index = (int) (segment.getPosition() / manifest.getBlockSize()) - 1;
+            while (index >= 0 && manifest.getBlockStart(index) >= segment.getStart()
+                    && !BlockVerifier.verifyBlock(mChannel, manifest, index, buffer)) {
+                Log.w(TAG, mProgress.tag + ": block " + index + " is corrupt, downloading it again");
+                mState.rewind(segment, manifest.getBlockStart(index));
+                index--;
+            }
+        }
+    }
+
+    private void downloadSegment(Segment segment) throws IOException {
+        Request<File, ? extends Request> request = mRequestFactory.create();
+        request.headers(HttpHeaders.HEAD_KEY_RANGE,
+                "bytes=" + segment.getPosition() + "-" + (segment.getEnd() - 1));
+        Call call = request.getRawCall();
+        try (Response response = execute(call)) {
+            if (response == null) {
+                return;
+            }
+            if (!response.isSuccessful()) {
+                throw HttpException.NET_ERROR();
+            }
+            if (response.code() != 206) {
+                throw HttpException.COMMON("Server ignored the requested range");
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            InputStream inputStream = response.body().byteStream();
+            int read;
+            while (!mPaused && !segment.isComplete()
+                    && (read = inputStream.read(buffer)) != -1) {
+                int length = (int) Math.min(read, segment.getEnd() - segment.getPosition());
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+                long position = segment.getPosition();
+                while (byteBuffer.hasRemaining()) {
+                    position += mChannel.write(byteBuffer, position);
+                }
+                onSegmentProgress(segment, buffer, length);
+            }
+            if (!mPaused && !segment.isComplete()) {
+                throw new IOException("Unexpected end of segment at " + segment.getPosition());
+            }
+        } finally {
+            synchronized (mCalls) {
+                mCalls.remove(call);
+            }
+        }
+    }
+
+    private Response execute(Call call) throws IOException {
+        synchronized (mCalls) {
+            if (mPaused) {
+                return null;
+            }
+            mCalls.add(call);
+        }
+        return call.execute();
+    }
+
+    private void cancelCalls() {
+        synchronized (mCalls) {
+            for (Call call : mCalls) {
+                call.cancel();
+            }
+        }
+    }
+
+    private void onSegmentProgress(Segment segment, byte[] buffer, int length) throws IOException {
+        long position;
+        synchronized (mProgress) {
+            position = segment.getPosition();
+            segment.setPosition(position + length);
+            Progress.changeProgress(mProgress, length, mState.getTotalSize(), progress -> {
+                if (!mRemoved) {
+                    mTask.save();
+                }
+                postOnProgress();
+            });
+        }
+        // Whoever holds the lock already hashes, these bytes are on disk for it or the next one
+        if (!mDigestLock.tryLock()) {
+            return;
+        }
+        try {
+            if (mDigest.getCount() == position) {
+                mDigest.update(buffer, 0, length);
+            }
+            catchUpDigest();
+        } finally {
+            mDigestLock.unlock();
+        }
+    }
+
+    /**
+     * Hashes everything written so far that the prefix reaches, waiting for a connection
+     * that is still at it.
+     */
+    private void hashWrittenBytes() throws IOException {
+        mDigestLock.lock();
+        try {
+            catchUpDigest();
+        } finally {
+            mDigestLock.unlock();
+        }
+    }
+
+    /**
+     * Reads back and hashes the bytes already written right after the hashed prefix, then
+     * checkpoints the digest. Must be called with the digest lock held. Segments only
+     * grow meanwhile, so their positions are looked up under the progress lock but the
+     * file is read outside of it.
+     */
+    private void catchUpDigest() throws IOException {
+        while (true) {
+            long count = mDigest.getCount();
+            long available;
+            synchronized (mProgress) {
+                if (count >= mState.getTotalSize()) {
+                    break;
+                }
+                available = mState.getSegmentAt(count).getPosition() - count;
+            }
+            if (available <= 0) {
+                break;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(mDigestBuffer, 0,
+                    (int) Math.min(available, mDigestBuffer.length));
+            int read = mChannel.read(byteBuffer, count);
+            if (read <= 0) {
+                throw new IOException("Unexpected end of file at " + count);
+            }
+            mDigest.update(mDigestBuffer, 0, read);
+        }
+        ResumableMd5 checkpoint = mDigest.copy();
+        synchronized (mProgress) {
+            mState.setDigest(checkpoint);
+        }
+    }
+
+    private void postOnStart() {
+        synchronized (mProgress) {
+            mProgress.speed = 0;
+            mProgress.status = Progress.NONE;
+            mProgress.exception = null;
+            mProgress.currentSize = mState.getDownloadedSize();
+            if (mRemoved) return;
+            mTask.save();
+        }
+        HttpUtils.runOnUiThread(() -> {
+            for (DownloadListener listener : mTask.listeners.values()) {
+                listener.onStart(mProgress);
+            }
+        });
+        mProgress.status = Progress.LOADING;
+        postOnProgress();
+    }
+
+    private void postOnProgress() {
+        HttpUtils.runOnUiThread(() -> {
+            for (DownloadListener listener : mTask.listeners.values()) {
+                listener.onProgress(mProgress);
+            }
+        });
+    }
+
+    private void postPause() {
+        synchronized (mProgress) {
+            mProgress.speed = 0;
+            mProgress.status = Progress.PAUSE;
+            if (mRemoved) return;
+            mTask.save();
+        }
+        postOnProgress();
+    }
+
+    private void postOnError(Throwable throwable) {
+        if (throwable == null) {
+            postPause();
+            return;
+        }
+        synchronized (mProgress) {
+            mProgress.speed = 0;
+            mProgress.status = Progress.ERROR;
+            mProgress.exception = throwable;
+            if (mRemoved) return;
+            mTask.save();
+        }
+        HttpUtils.runOnUiThread(() -> {
+            for (DownloadListener listener : mTask.listeners.values()) {
+                listener.onProgress(mProgress);
+                listener.onError(mProgress);
+            }
+        });
+    }
+
+    private void postOnFinish(File file) {
+        synchronized (mProgress) {
+            mProgress.speed = 0;
+            mProgress.fraction = 1.0f;
+            mProgress.status = Progress.FINISH;
+            if (mRemoved) return;
+            mTask.save();
+        }
+        HttpUtils.runOnUiThread(() -> {
+            for (DownloadListener listener : mTask.listeners.values()) {
+                listener.onProgress(mProgress);
+                listener.onFinish(file, mProgress);
+            }
+        });
+    }
+
+    private static final class TaskLock {
+        // Downloaders holding or waiting for the lock, guarded by sTaskLocks
+        private int mUsers;
+    }
+}
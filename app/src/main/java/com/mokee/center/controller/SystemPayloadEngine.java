@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.os.UpdateEngine;
+import android.os.UpdateEngineCallback;
+
+class SystemPayloadEngine implements PayloadEngine {
+
+    private final UpdateEngine mUpdateEngine = new UpdateEngine();
+
+    @Override
+    public boolean bind(Callback callback) {
+        return mUpdateEngine.bind(new UpdateEngineCallback() {
+            @Override
+            public void onStatusUpdate(int status, float percent) {
+                callback.onStatusUpdate(status, percent);
+            }
+
+            @Override
+            public void onPayloadApplicationComplete(int errorCode) {
+                callback.onPayloadApplicationComplete(errorCode);
+            }
+        });
+    }
+
+    @Override
+    public void applyPayload(String url, long offset, long size, String[] headers) {
+        mUpdateEngine.applyPayload(url, offset, size, headers);
+    }
+
+    @Override
+    public void cancel() {
+        mUpdateEngine.cancel();
+    }
+
+    @Override
+    public void setPerformanceMode(boolean enable) {
+        mUpdateEngine.setPerformanceMode(enable);
+    }
+}
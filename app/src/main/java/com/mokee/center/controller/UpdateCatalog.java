@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.content.Context;
+
+import com.mokee.center.misc.CatalogStore;
+import com.mokee.center.model.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The update list of the process, read from disk once and then kept in memory.
+ * <p>
+ * Every change publishes a new {@link Snapshot}, which is never modified, so it is
+ * shared as it is instead of being copied for every reader. The updates in a snapshot
+ * must not be modified either: whoever needs to track the state of an update, like
+ * {@link UpdaterController}, keeps its own copy.
+ */
+public class UpdateCatalog {
+
+    private static UpdateCatalog sInstance;
+
+    private final CatalogStore mStore;
+    private volatile Snapshot mSnapshot;
+
+    public static class Snapshot {
+        private final List<UpdateInfo> mUpdates;
+        private final Map<String, UpdateInfo> mUpdatesByName;
+        private final boolean mStored;
+        private final long mGeneration;
+
+        private Snapshot(List<UpdateInfo> updates, boolean stored, long generation) {
+            mUpdates = updates;
+            mUpdatesByName = new HashMap<>(mUpdates.size() * 2);
+            for (UpdateInfo updateInfo : mUpdates) {
+                mUpdatesByName.put(updateInfo.getName(), updateInfo);
+            }
+            mStored = stored;
+            mGeneration = generation;
+        }
+
+        /**
+         * @return the updates, sorted like the server sent them
+         */
+        public List<UpdateInfo> getUpdates() {
+            return mUpdates;
+        }
+
+        public UpdateInfo getUpdate(String name) {
+            return mUpdatesByName.get(name);
+        }
+
+        /**
+         * @return whether a list was fetched, as opposed to none or a cleared one
+         */
+        public boolean isStored() {
+            return mStored;
+        }
+
+        public long getGeneration() {
+            return mGeneration;
+        }
+    }
+
+    private UpdateCatalog(Context context) {
+        mStore = CatalogStore.getInstance(context);
+    }
+
+    public static synchronized UpdateCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdateCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                if (mSnapshot == null) {
+                    boolean stored = mStore.exists();
+                    mSnapshot = new Snapshot(Collections.unmodifiableList(mStore.load()),
+                            stored, mStore.getGeneration());
+                }
+                snapshot = mSnapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Replaces the list and stores it in the background.
+     *
+     * @param onStored run on a background thread once the list is on disk, unless it
+     *                 was replaced before
+     */
+    public synchronized Snapshot publish(List<UpdateInfo> updates, Runnable onStored) {
+        List<UpdateInfo> published = Collections.unmodifiableList(new ArrayList<>(updates));
+        long generation = mStore.save(published, onStored);
+        mSnapshot = new Snapshot(published, true, generation);
+        return mSnapshot;
+    }
+
+    public synchronized void clear() {
+        mSnapshot = new Snapshot(Collections.emptyList(), false, mStore.clear());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.mokee.center.model.UpdateInfo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process delivery of update events. Everything is delivered on the main thread.
+ * <p>
+ * Status changes and removals are delivered one by one, in order. Download and install
+ * progress is coalesced per update: a subscriber is called at most once per its minimum
+ * interval and only sees the latest state, however many ticks were posted meanwhile.
+ * A status change or removal drops the progress still pending for that update.
+ */
+public class UpdateEventBus {
+
+    public interface Subscriber {
+        void onUpdateStatusChanged(UpdateInfo update);
+
+        void onDownloadProgress(UpdateInfo update);
+
+        void onInstallProgress(UpdateInfo update);
+
+        void onUpdateRemoved(String downloadId);
+    }
+
+    private static final int DOWNLOAD_PROGRESS = 1;
+    private static final int INSTALL_PROGRESS = 1 << 1;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+    private final UpdaterController mUpdaterController;
+
+    UpdateEventBus(UpdaterController updaterController) {
+        mUpdaterController = updaterController;
+    }
+
+    /**
+     * @param minIntervalMillis the minimum time between two progress deliveries
+     */
+    public void subscribe(Subscriber subscriber, long minIntervalMillis) {
+        unsubscribe(subscriber);
+        mRegistrations.add(new Registration(subscriber, minIntervalMillis));
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mSubscriber == subscriber) {
+                registration.cancel();
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    void postStatusChanged(String downloadId) {
+        mHandler.post(() -> {
+            UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+            for (Registration registration : mRegistrations) {
+                registration.dropProgress(downloadId);
+                if (update != null) {
+                    registration.mSubscriber.onUpdateStatusChanged(update);
+                }
+            }
+        });
+    }
+
+    void postRemoved(String downloadId) {
+        mHandler.post(() -> {
+            for (Registration registration : mRegistrations) {
+                registration.dropProgress(downloadId);
+                registration.mSubscriber.onUpdateRemoved(downloadId);
+            }
+        });
+    }
+
+    void postDownloadProgress(String downloadId) {
+        for (Registration registration : mRegistrations) {
+            registration.postProgress(downloadId, DOWNLOAD_PROGRESS);
+        }
+    }
+
+    void postInstallProgress(String downloadId) {
+        for (Registration registration : mRegistrations) {
+            registration.postProgress(downloadId, INSTALL_PROGRESS);
+        }
+    }
+
+    private class Registration implements Runnable {
+
+        private final Subscriber mSubscriber;
+        private final long mMinInterval;
+
+        // Pending progress kinds by download ID, swapped with the delivery map on each run
+        private Map<String, Integer> mPending = new HashMap<>();
+        private Map<String, Integer> mDelivering = new HashMap<>();
+        private long mLastDelivery;
+        private boolean mScheduled;
+        private volatile boolean mCancelled;
+
+        Registration(Subscriber subscriber, long minInterval) {
+            mSubscriber = subscriber;
+            mMinInterval = minInterval;
+        }
+
+        synchronized void postProgress(String downloadId, int kind) {
+            if (mCancelled) {
+                return;
+            }
+            Integer kinds = mPending.get(downloadId);
+            mPending.put(downloadId, kinds == null ? kind : kinds | kind);
+            if (!mScheduled) {
+                mScheduled = true;
+                long delay = mLastDelivery + mMinInterval - SystemClock.uptimeMillis();
+                mHandler.postDelayed(this, Math.max(delay, 0));
+            }
+        }
+
+        synchronized void dropProgress(String downloadId) {
+            mPending.remove(downloadId);
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            mPending.clear();
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            Map<String, Integer> delivering;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                delivering = mPending;
+                mPending = mDelivering;
+                mDelivering = delivering;
+                mScheduled = false;
+                mLastDelivery = SystemClock.uptimeMillis();
+            }
+            for (Map.Entry<String, Integer> entry : delivering.entrySet()) {
+                UpdateInfo update = mUpdaterController.getUpdate(entry.getKey());
+                if (mCancelled || update == null) {
+                    continue;
+                }
+                if ((entry.getValue() & DOWNLOAD_PROGRESS) != 0) {
+                    mSubscriber.onDownloadProgress(update);
+                }
+                if ((entry.getValue() & INSTALL_PROGRESS) != 0) {
+                    mSubscriber.onInstallProgress(update);
+                }
+            }
+            delivering.clear();
+        }
+    }
+}
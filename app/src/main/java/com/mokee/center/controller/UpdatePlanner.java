@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import com.mokee.center.model.ParsedVersion;
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.util.BuildInfoUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the cheapest way from the installed build to the newest available one.
+ * <p>
+ * Builds are identified by their build date. A full package leads from the installed
+ * build straight to its own build, an incremental package leads from the build it was
+ * generated against to its target build. The plan is the chain of packages with the
+ * fewest bytes to download, fewer packages winning ties.
+ */
+public class UpdatePlanner {
+
+    public static class Plan {
+
+        private final List<UpdateInfo> mSteps;
+        private final long mTotalSize;
+
+        private Plan(List<UpdateInfo> steps, long totalSize) {
+            mSteps = Collections.unmodifiableList(steps);
+            mTotalSize = totalSize;
+        }
+
+        /**
+         * @return the packages to download and install, in installation order
+         */
+        public List<UpdateInfo> getSteps() {
+            return mSteps;
+        }
+
+        public UpdateInfo getTarget() {
+            return mSteps.get(mSteps.size() - 1);
+        }
+
+        public long getTotalSize() {
+            return mTotalSize;
+        }
+
+        public boolean isIncremental() {
+            for (UpdateInfo step : mSteps) {
+                if (BuildInfoUtil.isIncrementalUpdate(step.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Node implements Comparable<Node> {
+        final long mBuildDate;
+        final long mSize;
+        final int mSteps;
+
+        Node(long buildDate, long size, int steps) {
+            mBuildDate = buildDate;
+            mSize = size;
+            mSteps = steps;
+        }
+
+        @Override
+        public int compareTo(Node o) {
+            return mSize != o.mSize ? Long.compare(mSize, o.mSize) : Integer.compare(mSteps, o.mSteps);
+        }
+    }
+
+    private UpdatePlanner() {
+    }
+
+    /**
+     * @param installedVersion the version of the installed build
+     * @param updates          the available packages
+     * @return the cheapest plan to the newest build reachable from the installed one,
+     * or null if there is nothing newer to update to
+     */
+    public static Plan plan(String installedVersion, Collection<UpdateInfo> updates) {
+        long installed = BuildInfoUtil.getBuildDate(installedVersion);
+
+        // Packages leaving each build, keyed by build date
+        Map<Long, List<UpdateInfo>> edges = new HashMap<>();
+        for (UpdateInfo update : updates) {
+            ParsedVersion version = update.getVersion();
+            long target = version.getBuildDate();
+            if (target <= installed) {
+                continue;
+            }
+            long source = version.isIncremental() ? version.getSourceBuildDate() : installed;
+            if (source < installed || source >= target) {
+                continue;
+            }
+            List<UpdateInfo> leaving = edges.get(source);
+            if (leaving == null) {
+                leaving = new ArrayList<>();
+                edges.put(source, leaving);
+            }
+            leaving.add(update);
+        }
+
+        Map<Long, Node> best = new HashMap<>();
+        Map<Long, UpdateInfo> via = new HashMap<>();
+        PriorityQueue<Node> queue = new PriorityQueue<>();
+        Node start = new Node(installed, 0, 0);
+        best.put(installed, start);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            if (best.get(node.mBuildDate) != node) {
+                continue;
+            }
+            List<UpdateInfo> leaving = edges.get(node.mBuildDate);
+            if (leaving == null) {
+                continue;
+            }
+            for (UpdateInfo update : leaving) {
+                long target = update.getVersion().getBuildDate();
+                Node next = new Node(target, node.mSize + update.getFileSize(), node.mSteps + 1);
+                Node known = best.get(target);
+                if (known == null || next.compareTo(known) < 0) {
+                    best.put(target, next);
+                    via.put(target, update);
+                    queue.add(next);
+                }
+            }
+        }
+
+        long newest = installed;
+        for (long buildDate : best.keySet()) {
+            newest = Math.max(newest, buildDate);
+        }
+        if (newest == installed) {
+            return null;
+        }
+
+        List<UpdateInfo> steps = new ArrayList<>();
+        for (long buildDate = newest; buildDate != installed; ) {
+            UpdateInfo update = via.get(buildDate);
+            steps.add(update);
+            buildDate = update.getVersion().isIncremental()
+                    ? update.getVersion().getSourceBuildDate() : installed;
+        }
+        Collections.reverse(steps);
+        return new Plan(steps, best.get(newest).mSize);
+    }
+}
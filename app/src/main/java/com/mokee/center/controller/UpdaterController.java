@@ -17,13 +17,20 @@
 
 package com.mokee.center.controller;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.RecoverySystem;
 import android.os.SystemClock;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
@@ -31,34 +38,46 @@ import android.util.Log;
 
 import com.lzy.okgo.OkGo;
 import com.lzy.okgo.exception.HttpException;
+import com.lzy.okgo.model.HttpHeaders;
 import com.lzy.okgo.model.Progress;
 import com.lzy.okgo.request.base.Request;
+import com.lzy.okgo.utils.HttpUtils;
 import com.lzy.okserver.OkDownload;
 import com.lzy.okserver.download.DownloadListener;
 import com.lzy.okserver.download.DownloadTask;
 import com.mokee.center.MKCenterApplication;
 import com.mokee.center.R;
-import com.mokee.center.misc.State;
+import com.mokee.center.misc.Constants;
+import com.mokee.center.model.BlockManifest;
+import com.mokee.center.model.DownloadState;
+import com.mokee.center.model.PackageMetadata;
+import com.mokee.center.model.QueuedDownload;
 import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.model.UpdateStatus;
 import com.mokee.center.util.BuildInfoUtil;
 import com.mokee.center.util.CommonUtil;
 import com.mokee.center.util.FileUtil;
 import com.mokee.center.util.OkGoUtil;
 
 import java.io.File;
-import java.util.Iterator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class UpdaterController {
+import okhttp3.Call;
+
+public class UpdaterController implements ABUpdateInstaller.Host {
 
-    public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
-    public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
-    public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
-    public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
     private final String TAG = UpdaterController.class.getName();
@@ -66,12 +85,20 @@ public class UpdaterController {
     private static UpdaterController sUpdaterController;
 
     private final Context mContext;
-    private final LocalBroadcastManager mBroadcastManager;
+    private final UpdateEventBus mEventBus = new UpdateEventBus(this);
     private OkDownload mOkDownload;
 
     private final PowerManager.WakeLock mWakeLock;
 
-    private String mActiveDownloadTag;
+    private final Set<String> mActiveDownloads = new LinkedHashSet<>();
+    private final Set<String> mPendingRestarts = new HashSet<>();
+    private final Map<String, SegmentedDownloader> mSegmentedDownloaders = new HashMap<>();
+    // Threads verifying a finished download, interrupted when it is deleted
+    private final Map<String, Thread> mVerifiers = new ConcurrentHashMap<>();
+    private final DownloadQueue mDownloadQueue;
+    private final PackageMetadataCache mPackageMetadataCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mScheduleRunnable = this::scheduleDownloads;
 
     public static synchronized UpdaterController getInstance() {
         return sUpdaterController;
@@ -85,7 +112,6 @@ public class UpdaterController {
     }
 
     private UpdaterController(Context context) {
-        mBroadcastManager = LocalBroadcastManager.getInstance(context);
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "system:Updater");
         mWakeLock.setReferenceCounted(false);
@@ -95,8 +121,9 @@ public class UpdaterController {
         CommonUtil.cleanupDownloadsDir(context);
 
         Map<String, DownloadTask> downloadTaskMap = CommonUtil.getDownloadTaskMap();
-        for (UpdateInfo updateInfo : State.loadState(FileUtil.getCachedUpdateList(context))) {
-            if (!BuildInfoUtil.isCompatible(updateInfo.getName())) continue;
+        for (UpdateInfo cached : UpdateCatalog.getInstance(context).getSnapshot().getUpdates()) {
+            if (!BuildInfoUtil.isCompatible(cached.getVersion())) continue;
+            UpdateInfo updateInfo = new UpdateInfo.Builder(cached).build();
             DownloadTask downloadTask = downloadTaskMap.get(updateInfo.getName());
             if (downloadTask != null) {
                 // File already deleted
@@ -109,6 +136,41 @@ public class UpdaterController {
             mAvailableUpdates.put(updateInfo.getName(), updateInfo);
         }
 
+        mDownloadQueue = new DownloadQueue(FileUtil.getDownloadQueueFile(context));
+        mPackageMetadataCache = new PackageMetadataCache(mContext);
+        for (QueuedDownload entry : mDownloadQueue.getOrdered()) {
+            UpdateInfo updateInfo = mAvailableUpdates.get(entry.getDownloadId());
+            if (updateInfo == null || updateInfo.getProgress() == null) {
+                mDownloadQueue.remove(entry.getDownloadId());
+            }
+        }
+
+        // Queued downloads may wait for an unmetered network, a charger or the screen to go
+        // off, watch for all of them here rather than in the service, background prefetches
+        // run without it
+        ConnectivityManager connectivityManager = mContext.getSystemService(ConnectivityManager.class);
+        connectivityManager.registerDefaultNetworkCallback(new NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                scheduleDownloads();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                scheduleDownloads();
+            }
+        }, mHandler);
+        IntentFilter powerFilter = new IntentFilter();
+        powerFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+        powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        powerFilter.addAction(Intent.ACTION_SCREEN_ON);
+        powerFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                scheduleDownloads();
+            }
+        }, powerFilter);
     }
 
     public LinkedList<UpdateInfo> getUpdates() {
@@ -121,18 +183,54 @@ public class UpdaterController {
 
     private Map<String, UpdateInfo> mAvailableUpdates = new TreeMap<>((o1, o2) -> CommonUtil.compare(o1, o2));
 
-    public void cleanAvailableUpdates() {
-        mAvailableUpdates.clear();
-    }
-
-    public void setUpdatesAvailableOnline(List<String> downloadIds) {
-        for (Iterator<Entry<String, UpdateInfo>> iterator = mAvailableUpdates.entrySet().iterator(); iterator.hasNext();) {
-            Entry<String, UpdateInfo> item = iterator.next();
-            if (!downloadIds.contains(item.getKey())) {
-                Log.d(TAG, item.getKey() + " no longer available online, removing");
-                iterator.remove();
+    /**
+     * Brings the available updates in line with a freshly fetched list. Updates that
+     * were already known keep their download and install state, unless the server now
+     * hands out another package for them: that download is dropped with its file, as
+     * resuming it would mix two packages.
+     *
+     * @return what changed, for the caller to pass on
+     */
+    public CatalogDiff applyUpdates(Collection<UpdateInfo> fetched) {
+        List<UpdateInfo> compatible = new ArrayList<>(fetched.size());
+        for (UpdateInfo updateInfo : fetched) {
+            if (BuildInfoUtil.isCompatible(updateInfo.getVersion())) {
+                compatible.add(updateInfo);
+            } else {
+                Log.d(TAG, "Download (" + updateInfo.getName() + ") is deprecated");
+            }
+        }
+        CatalogDiff diff = CatalogDiff.compute(mAvailableUpdates.values(), compatible);
+        for (String downloadId : diff.getRemoved()) {
+            Log.d(TAG, downloadId + " no longer available online, removing");
+            mAvailableUpdates.remove(downloadId);
+        }
+        for (UpdateInfo updateInfo : diff.getAdded()) {
+            addUpdate(updateInfo);
+        }
+        for (UpdateInfo changed : diff.getChanged()) {
+            UpdateInfo updateInfo = new UpdateInfo.Builder(changed).build();
+            String downloadId = updateInfo.getName();
+            UpdateInfo old = mAvailableUpdates.get(downloadId);
+            updateInfo.setProgress(old.getProgress());
+            mAvailableUpdates.put(downloadId, updateInfo);
+            if (isSamePackage(old, updateInfo) || isInstallingUpdate(downloadId)) {
+                Log.d(TAG, downloadId + " changed online, updating");
+                updateInfo.setStatus(old.getStatus());
+                updateInfo.setFinalizing(old.getFinalizing());
+                updateInfo.setInstallProgress(old.getInstallProgress());
+                updateInfo.setVerifyProgress(old.getVerifyProgress());
+            } else if (mOkDownload.getTask(downloadId) != null) {
+                Log.d(TAG, downloadId + " replaced online, dropping its download");
+                deleteDownload(downloadId);
             }
         }
+        return diff;
+    }
+
+    private static boolean isSamePackage(UpdateInfo a, UpdateInfo b) {
+        return TextUtils.equals(a.getMd5(), b.getMd5())
+                && TextUtils.equals(a.getDownloadUrl(), b.getDownloadUrl());
     }
 
     public boolean addUpdate(UpdateInfo updateInfo) {
@@ -141,10 +239,12 @@ public class UpdaterController {
             Log.d(TAG, "Download (" + updateInfo.getName() + ") already added");
             return false;
         }
-        if (!BuildInfoUtil.isCompatible(updateInfo.getName())) {
+        if (!BuildInfoUtil.isCompatible(updateInfo.getVersion())) {
             Log.d(TAG, "Download (" + updateInfo.getName() + ") is deprecated");
             return false;
         }
+        // Keep the given update as it is, it may be shared
+        updateInfo = new UpdateInfo.Builder(updateInfo).build();
         DownloadTask downloadedTask = mOkDownload.getTask(updateInfo.getName());
         if (downloadedTask != null) {
             updateInfo.setProgress(downloadedTask.progress);
@@ -154,19 +254,147 @@ public class UpdaterController {
     }
 
     private void verifyUpdateAsync(final String downloadId) {
-        new Thread(() -> {
+        Thread verifier = new Thread(() -> {
             DownloadTask downloadTask = mOkDownload.getTask(downloadId);
             File partialFile = new File(downloadTask.progress.filePath);
             Progress progress = downloadTask.progress;
-            if (!partialFile.exists() || !verifyPackage(partialFile)) {
+            boolean verified;
+            try {
+                verified = partialFile.exists() && verifyChecksum(downloadId, progress, partialFile)
+                        && verifyPackage(partialFile);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Verification of " + downloadId + " cancelled");
+                return;
+            }
+            if (!mVerifiers.remove(downloadId, Thread.currentThread())) {
+                // Deleted while it was being verified
+                return;
+            }
+            if (!verified) {
+                if (partialFile.exists() && repairDownload(downloadId, downloadTask, partialFile)) {
+                    return;
+                }
+                partialFile.delete();
                 progress.status = Progress.ERROR;
                 progress.exception = new UnsupportedOperationException("Verification failed");
             }
             progress.fileName = downloadId;
             downloadTask.save();
-            partialFile.renameTo(new File(downloadTask.progress.filePath));
+            File file = new File(downloadTask.progress.filePath);
+            partialFile.renameTo(file);
+            if (verified) {
+                // Read while the package is still in the page cache, so installing it
+                // later does not have to touch the zip
+                try {
+                    mPackageMetadataCache.put(downloadId, file, true);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read the metadata of " + downloadId, e);
+                }
+            }
+            notifyUpdateChange(downloadId);
+        });
+        mVerifiers.put(downloadId, verifier);
+        verifier.start();
+    }
+
+    private boolean verifyChecksum(String downloadId, Progress progress, File file)
+            throws InterruptedException {
+        UpdateInfo updateInfo = mAvailableUpdates.get(downloadId);
+        if (SegmentedDownloader.isSegmented(progress)
+                && ((DownloadState) progress.extra2).hasRepairs()) {
+            // The rest of the file already passed the block check before the repair
+            BlockManifest manifest = BlockVerifier.loadManifest(mContext, updateInfo);
+            return manifest != null && BlockVerifier.verifyRanges(file, manifest,
+                    ((DownloadState) progress.extra2).getRepairs());
+        }
+        if (updateInfo == null || TextUtils.isEmpty(updateInfo.getMd5())) {
+            return true;
+        }
+        String expectedMd5 = updateInfo.getMd5().toUpperCase(Locale.ENGLISH);
+        boolean matched;
+        String md5 = SegmentedDownloader.isSegmented(progress)
+                ? ((DownloadState) progress.extra2).getMd5() : null;
+        if (md5 != null) {
+            matched = TextUtils.equals(expectedMd5, md5);
+        } else {
+            // Downloaded by OkDownload in a single stream, nothing was hashed on the way
+            setVerifyStatus(downloadId, UpdateStatus.VERIFYING, 0);
             notifyUpdateChange(downloadId);
-        }).start();
+            matched = FileUtil.checkMd5(expectedMd5, file, (hashedBytes, totalBytes) -> {
+                setVerifyStatus(downloadId, UpdateStatus.VERIFYING, (float) hashedBytes / totalBytes);
+                // Coalesced by the event bus, like download progress
+                notifyDownloadProgress(downloadId);
+            });
+            setVerifyStatus(downloadId, matched ? UpdateStatus.VERIFIED
+                    : UpdateStatus.VERIFICATION_FAILED, 1);
+        }
+        if (!matched) {
+            Log.e(TAG, "MD5 mismatch for " + downloadId);
+        }
+        return matched;
+    }
+
+    private void setVerifyStatus(String downloadId, UpdateStatus status, float progress) {
+        // Looked up every time, the update is replaced when the list changes online
+        UpdateInfo updateInfo = mAvailableUpdates.get(downloadId);
+        if (updateInfo != null) {
+            updateInfo.setStatus(status);
+            updateInfo.setVerifyProgress(progress);
+        }
+    }
+
+    /**
+     * Checks a package that failed verification against its block manifest and, when
+     * only some blocks are corrupt, downloads those again instead of the whole file.
+     *
+     * @return whether a repair was started
+     */
+    private boolean repairDownload(String downloadId, DownloadTask downloadTask, File file) {
+        Progress progress = downloadTask.progress;
+        if (!SegmentedDownloader.isSegmented(progress)) {
+            return false;
+        }
+        DownloadState state = (DownloadState) progress.extra2;
+        if (state.hasRepairs()) {
+            // Already repaired once, the next attempt starts from scratch
+            return false;
+        }
+        BlockManifest manifest = BlockVerifier.loadManifest(mContext, mAvailableUpdates.get(downloadId));
+        if (manifest == null || manifest.getSize() != state.getTotalSize()) {
+            return false;
+        }
+        List<Integer> corruptBlocks;
+        try {
+            corruptBlocks = BlockVerifier.findCorruptBlocks(file, manifest);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not check the blocks of " + downloadId, e);
+            return false;
+        }
+        if (corruptBlocks.isEmpty()) {
+            // Every block matches, the manifest cannot tell what is wrong
+            return false;
+        }
+        Log.d(TAG, "Downloading " + corruptBlocks.size() + " corrupt blocks of " + downloadId + " again");
+        synchronized (progress) {
+            int first = corruptBlocks.get(0);
+            int last = first;
+            for (int i = 1; i <= corruptBlocks.size(); i++) {
+                if (i < corruptBlocks.size() && corruptBlocks.get(i) == last + 1) {
+                    last++;
+                    continue;
+                }
+                state.addRepair(manifest.getBlockStart(first), manifest.getBlockEnd(last));
+                if (i < corruptBlocks.size()) {
+                    first = last = corruptBlocks.get(i);
+                }
+            }
+            progress.status = Progress.PAUSE;
+            progress.currentSize = state.getDownloadedSize();
+            progress.fraction = (float) progress.currentSize / progress.totalSize;
+            downloadTask.save();
+        }
+        HttpUtils.runOnUiThread(() -> resumeDownload(downloadId));
+        return true;
     }
 
     private boolean verifyPackage(File file) {
@@ -179,9 +407,7 @@ public class UpdaterController {
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
-                file.delete();
-            } else {
+            if (!file.exists()) {
                 // The download was probably stopped. Exit silently
                 Log.e(TAG, "Error while verifying the file", e);
             }
@@ -189,32 +415,35 @@ public class UpdaterController {
         }
     }
 
-    void notifyUpdateChange(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_STATUS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    /**
+     * @return the metadata of a downloaded package, read from the zip only if the
+     * package changed since it was verified
+     */
+    @Override
+    public PackageMetadata getPackageMetadata(String downloadId) throws IOException {
+        return mPackageMetadataCache.get(downloadId, mAvailableUpdates.get(downloadId).getFile());
+    }
+
+    public UpdateEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    @Override
+    public void notifyUpdateChange(String downloadId) {
+        mEventBus.postStatusChanged(downloadId);
     }
 
     void notifyUpdateDelete(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_REMOVED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mEventBus.postRemoved(downloadId);
     }
 
     void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mEventBus.postDownloadProgress(downloadId);
     }
 
-    void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    @Override
+    public void notifyInstallProgress(String downloadId) {
+        mEventBus.postInstallProgress(downloadId);
     }
 
     private void tryReleaseWakelock() {
@@ -223,8 +452,7 @@ public class UpdaterController {
         }
     }
 
-    public void startDownload(String downloadId) {
-        Log.d(TAG, "Starting " + downloadId);
+    Request<File, ? extends Request> buildDownloadRequest(String downloadId) {
         Request<File, ? extends Request> request;
         if (BuildInfoUtil.isIncrementalUpdate(downloadId)) {
             request = OkGo.get(mAvailableUpdates.get(downloadId).getDownloadUrl());
@@ -234,56 +462,280 @@ public class UpdaterController {
                 request.params(OkGoUtil.buildParams(mContext));
             }
         }
-        DownloadTask task = OkDownload.request(mAvailableUpdates.get(downloadId).getName(), request)
-                .fileName(FileUtil.getPartialName(downloadId)).save()
-                .register(new LogDownloadListener());
-        task.start();
-        mAvailableUpdates.get(downloadId).setProgress(task.progress);
+        return request;
     }
 
-    public void resumeDownload(String downloadId) {
-        Log.d(TAG, "Resuming " + downloadId);
-        DownloadTask downloadTask = mOkDownload.getTask(downloadId);
+    @Override
+    public Call newStreamProbe(String downloadId) {
+        Request<File, ? extends Request> request = buildDownloadRequest(downloadId);
+        request.headers(HttpHeaders.HEAD_KEY_RANGE, "bytes=0-0");
+        return request.getRawCall();
+    }
 
-        if (MKCenterApplication.getInstance().getDonationInfo().isBasic()) {
-            if (downloadTask.progress.request != null) {
-                if (!BuildInfoUtil.isIncrementalUpdate(downloadId)) {
-                    downloadTask.progress.request.params(OkGoUtil.buildParams(mContext));
-                }
-            } else {
-                restartDownload(downloadId);
-                return;
+    private int getDownloadConnections() {
+        // Extra connections are a donation feature, same as the unlimited download speed
+        if (!MKCenterApplication.getInstance().getDonationInfo().isBasic()) {
+            return 1;
+        }
+        int connections = CommonUtil.getMainPrefs(mContext).getInt(Constants.PREF_DOWNLOAD_CONNECTIONS, 1);
+        return Math.max(1, Math.min(connections,
+                mContext.getResources().getInteger(R.integer.max_download_connections)));
+    }
+
+    private int getDownloadBudget() {
+        int budget = CommonUtil.getMainPrefs(mContext).getInt(Constants.PREF_CONCURRENT_DOWNLOADS,
+                mContext.getResources().getInteger(R.integer.concurrent_downloads));
+        return Math.max(1, Math.min(budget,
+                mContext.getResources().getInteger(R.integer.max_concurrent_downloads)));
+    }
+
+    private void startSegmentedDownload(DownloadTask downloadTask, int connections, boolean restart) {
+        String downloadId = downloadTask.progress.tag;
+        SegmentedDownloader downloader = mSegmentedDownloaders.remove(downloadId);
+        if (downloader != null) {
+            downloader.pause();
+        }
+        UpdateInfo updateInfo = mAvailableUpdates.get(downloadId);
+        downloader = new SegmentedDownloader(downloadTask,
+                () -> buildDownloadRequest(downloadId),
+                () -> BlockVerifier.loadManifest(mContext, updateInfo), connections);
+        mSegmentedDownloaders.put(downloadId, downloader);
+        if (restart) {
+            downloader.restart();
+        } else {
+            downloader.start();
+        }
+    }
+
+    @Override
+    public void startDownload(String downloadId) {
+        enqueueDownload(new QueuedDownload.Builder().setDownloadId(downloadId).build());
+    }
+
+    /**
+     * Queues a download, or updates the priority and constraints of one already queued.
+     * It starts as soon as its constraints are met and the download budget allows it.
+     */
+    public void enqueueDownload(QueuedDownload entry) {
+        String downloadId = entry.getDownloadId();
+        Log.d(TAG, "Queueing " + downloadId);
+        DownloadTask task = mOkDownload.getTask(downloadId);
+        if (task == null) {
+            task = OkDownload.request(downloadId, buildDownloadRequest(downloadId))
+                    .fileName(FileUtil.getPartialName(downloadId)).save();
+            mAvailableUpdates.get(downloadId).setProgress(task.progress);
+        }
+        mDownloadQueue.put(entry);
+        if (!mActiveDownloads.contains(downloadId)) {
+            setWaiting(task);
+        }
+        scheduleDownloads();
+    }
+
+    /**
+     * @return the cheapest way to the newest available build, or null if there is none
+     */
+    public UpdatePlanner.Plan getUpdatePlan() {
+        return UpdatePlanner.plan(com.mokee.os.Build.VERSION, mAvailableUpdates.values());
+    }
+
+    /**
+     * Queues the packages of a plan that are not downloaded or on their way yet. They
+     * are queued in installation order, so they also download in that order.
+     */
+    public void enqueuePlan(UpdatePlanner.Plan plan) {
+        for (UpdateInfo step : plan.getSteps()) {
+            String downloadId = step.getName();
+            Progress progress = step.getProgress();
+            if (progress != null && progress.status == Progress.FINISH) {
+                continue;
             }
+            QueuedDownload entry = mDownloadQueue.get(downloadId);
+            if (mActiveDownloads.contains(downloadId) || entry != null && !entry.isPaused()) {
+                continue;
+            }
+            resumeDownload(downloadId);
         }
-        downloadTask.register(new LogDownloadListener()).start();
+    }
+
+    public void resumeDownload(String downloadId) {
+        Log.d(TAG, "Resuming " + downloadId);
+        if (mActiveDownloads.contains(downloadId)) {
+            // Retrying a download that is already running
+            launchDownload(downloadId);
+            return;
+        }
+        QueuedDownload entry = mDownloadQueue.get(downloadId);
+        if (entry == null) {
+            entry = new QueuedDownload.Builder().setDownloadId(downloadId).build();
+        }
+        entry.setPaused(false);
+        enqueueDownload(entry);
     }
 
     public void restartDownload(String downloadId) {
         Log.d(TAG, "Restarting " + downloadId);
-        mOkDownload.getTask(downloadId).restart();
+        DownloadTask downloadTask = mOkDownload.getTask(downloadId);
+        mPendingRestarts.add(downloadId);
+        if (mActiveDownloads.contains(downloadId)) {
+            launchDownload(downloadId);
+            return;
+        }
+        resumeDownload(downloadId);
     }
 
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        mOkDownload.getTask(downloadId).pause();
-        mActiveDownloadTag = null;
+        QueuedDownload entry = mDownloadQueue.get(downloadId);
+        if (entry != null) {
+            entry.setPaused(true);
+            mDownloadQueue.save();
+        }
+        if (mActiveDownloads.remove(downloadId)) {
+            stopDownload(downloadId);
+        } else {
+            // Still waiting in the queue, nothing is running
+            DownloadTask downloadTask = mOkDownload.getTask(downloadId);
+            downloadTask.progress.status = Progress.PAUSE;
+            downloadTask.save();
+            notifyUpdateChange(downloadId);
+        }
+        scheduleDownloads();
     }
 
     public void deleteDownload(String downloadId) {
         Log.d(TAG, "Deleting " + downloadId);
+        mDownloadQueue.remove(downloadId);
+        mActiveDownloads.remove(downloadId);
+        mPendingRestarts.remove(downloadId);
+        SegmentedDownloader downloader = mSegmentedDownloaders.remove(downloadId);
+        if (downloader != null) {
+            downloader.remove();
+        }
+        Thread verifier = mVerifiers.remove(downloadId);
+        if (verifier != null) {
+            verifier.interrupt();
+        }
         mOkDownload.getTask(downloadId).remove(true);
+        FileUtil.getBlockManifestFile(mContext, downloadId).delete();
+        mPackageMetadataCache.remove(downloadId);
+        PrefetchJobService.cancel(mContext, downloadId);
         mAvailableUpdates.get(downloadId).setProgress(null);
         notifyUpdateDelete(downloadId);
+        tryReleaseWakelock();
+        scheduleDownloads();
     }
 
-    public String getActiveDownloadTag() {
-        return mActiveDownloadTag;
+    /**
+     * Starts the queued downloads whose constraints are met, highest priority first,
+     * as long as the download budget allows, and stops the running downloads whose
+     * constraints are no longer met. Call it whenever the device conditions change.
+     */
+    public void scheduleDownloads() {
+        mHandler.removeCallbacks(mScheduleRunnable);
+        DownloadQueue.Conditions conditions = DownloadQueue.Conditions.current(mContext);
+        List<QueuedDownload> entries = mDownloadQueue.getOrdered();
+        List<QueuedDownload> ready = new ArrayList<>();
+        for (QueuedDownload entry : entries) {
+            String downloadId = entry.getDownloadId();
+            if (entry.isPaused()) {
+                continue;
+            }
+            boolean allowed = conditions.allow(entry);
+            if (mActiveDownloads.contains(downloadId)) {
+                if (!allowed) {
+                    Log.d(TAG, "Constraints of " + downloadId + " no longer met, stopping");
+                    mActiveDownloads.remove(downloadId);
+                    stopDownload(downloadId);
+                }
+            } else if (allowed) {
+                ready.add(entry);
+            }
+        }
+        int budget = getDownloadBudget();
+        for (QueuedDownload entry : ready) {
+            if (mActiveDownloads.size() >= budget) {
+                break;
+            }
+            launchDownload(entry.getDownloadId());
+        }
+        long nextWindowChange = conditions.getNextWindowChange(entries);
+        if (nextWindowChange >= 0) {
+            mHandler.postDelayed(mScheduleRunnable, nextWindowChange);
+        }
+    }
+
+    private void launchDownload(String downloadId) {
+        Log.d(TAG, "Starting " + downloadId);
+        DownloadTask downloadTask = mOkDownload.getTask(downloadId);
+        mActiveDownloads.add(downloadId);
+        downloadTask.register(new LogDownloadListener());
+
+        Progress progress = downloadTask.progress;
+        UpdateInfo updateInfo = mAvailableUpdates.get(downloadId);
+        boolean restart = mPendingRestarts.remove(downloadId);
+        int connections = getDownloadConnections();
+        // Segments are only worth it for more connections or to check blocks on the way,
+        // a partial file is always carried on by the downloader that started it
+        if (SegmentedDownloader.isSegmented(progress) || (restart || progress.currentSize == 0)
+                && (connections > 1 || !TextUtils.isEmpty(updateInfo.getBlockManifestUrl()))) {
+            startSegmentedDownload(downloadTask, connections, restart);
+            return;
+        }
+
+        if (MKCenterApplication.getInstance().getDonationInfo().isBasic()) {
+            if (progress.request != null) {
+                if (!BuildInfoUtil.isIncrementalUpdate(downloadId)) {
+                    progress.request.params(OkGoUtil.buildParams(mContext));
+                }
+            } else {
+                startSegmentedDownload(downloadTask, connections, true);
+                return;
+            }
+        }
+        if (restart) {
+            downloadTask.restart();
+        } else {
+            downloadTask.start();
+        }
+    }
+
+    private void stopDownload(String downloadId) {
+        SegmentedDownloader downloader = mSegmentedDownloaders.remove(downloadId);
+        if (downloader != null) {
+            downloader.pause();
+        } else {
+            mOkDownload.getTask(downloadId).pause();
+        }
+        tryReleaseWakelock();
+    }
+
+    private void setWaiting(DownloadTask downloadTask) {
+        if (downloadTask.progress.status != Progress.WAITING) {
+            downloadTask.progress.status = Progress.WAITING;
+            downloadTask.save();
+            notifyUpdateChange(downloadTask.progress.tag);
+        }
+    }
+
+    public List<String> getActiveDownloads() {
+        return new ArrayList<>(mActiveDownloads);
     }
 
     public boolean hasActiveDownloads() {
-        return !TextUtils.isEmpty(mActiveDownloadTag);
+        return !mActiveDownloads.isEmpty();
+    }
+
+    public QueuedDownload getQueuedDownload(String downloadId) {
+        return mDownloadQueue.get(downloadId);
+    }
+
+    public boolean isDownloadQueued(String downloadId) {
+        QueuedDownload entry = mDownloadQueue.get(downloadId);
+        return entry != null && !entry.isPaused() && !mActiveDownloads.contains(downloadId);
     }
 
+    @Override
     public UpdateInfo getUpdate(String downloadId) {
         return mAvailableUpdates.get(downloadId);
     }
@@ -299,7 +751,6 @@ public class UpdaterController {
 
         @Override
         public void onStart(Progress progress) {
-            mActiveDownloadTag = progress.tag;
             mWakeLock.acquire();
         }
 
@@ -335,17 +786,25 @@ public class UpdaterController {
 
         @Override
         public void onError(Progress progress) {
+            mSegmentedDownloaders.remove(progress.tag);
             notifyUpdateChange(progress.tag);
             if (progress.exception instanceof HttpException) {
-                mActiveDownloadTag = null;
+                // Not worth retrying, leave the slot to the next queued download
+                mActiveDownloads.remove(progress.tag);
+                mDownloadQueue.remove(progress.tag);
+                tryReleaseWakelock();
+                scheduleDownloads();
             }
         }
 
         @Override
         public void onFinish(File file, Progress progress) {
-            mActiveDownloadTag = null;
+            mActiveDownloads.remove(progress.tag);
+            mDownloadQueue.remove(progress.tag);
+            mSegmentedDownloaders.remove(progress.tag);
             verifyUpdateAsync(progress.tag);
             tryReleaseWakelock();
+            scheduleDownloads();
         }
 
         @Override
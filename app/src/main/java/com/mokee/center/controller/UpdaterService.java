@@ -21,10 +21,8 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
 import android.net.Network;
@@ -33,17 +31,17 @@ import android.net.NetworkInfo;
 import android.net.NetworkRequest;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.lzy.okgo.exception.HttpException;
 import com.lzy.okgo.exception.OkGoException;
 import com.lzy.okgo.model.Progress;
-import com.lzy.okserver.OkDownload;
-import com.lzy.okserver.download.DownloadTask;
 import com.mokee.center.R;
 import com.mokee.center.activity.MainActivity;
 import com.mokee.center.misc.Constants;
@@ -67,6 +65,7 @@ public class UpdaterService extends Service {
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
     public static final String EXTRA_DOWNLOAD_CONTROL = "extra_download_control";
     public static final String ACTION_INSTALL_UPDATE = "action_install_update";
+    public static final String ACTION_STREAM_UPDATE = "action_stream_update";
     public static final String ACTION_INSTALL_STOP = "action_install_stop";
     public static final int DOWNLOAD_START = 0;
     public static final int DOWNLOAD_RESUME = 1;
@@ -79,15 +78,59 @@ public class UpdaterService extends Service {
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
-    private BroadcastReceiver mBroadcastReceiver;
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
 
     private UpdaterController mUpdaterController;
-    private OkDownload mOkDownload;
     private ConnectivityManager mConnectivityManager;
 
+    private final UpdateEventBus.Subscriber mEventSubscriber = new UpdateEventBus.Subscriber() {
+
+        @Override
+        public void onUpdateStatusChanged(UpdateInfo update) {
+            if (update.getProgress() == null) {
+                // Streamed A/B updates have nothing downloaded
+                if (update.getStatus() == UpdateStatus.INSTALLING
+                        || update.getStatus() == UpdateStatus.INSTALLED) {
+                    setNotificationExtras(update);
+                    handleInstallStatusChange(update);
+                } else if (update.getStatus() == UpdateStatus.INSTALLATION_FAILED
+                        || update.getStatus() == UpdateStatus.INSTALLATION_CANCELLED) {
+                    stopForeground(STOP_FOREGROUND_REMOVE);
+                    tryStopSelf();
+                }
+                return;
+            }
+            setNotificationExtras(update);
+            handleUpdateStatusChange(update.getProgress());
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateInfo update) {
+            if (update.getProgress() != null) {
+                handleDownloadProgressChange(update);
+            }
+        }
+
+        @Override
+        public void onInstallProgress(UpdateInfo update) {
+            handleInstallProgress(update);
+        }
+
+        @Override
+        public void onUpdateRemoved(String downloadId) {
+            Bundle extras = mNotificationBuilder.getExtras();
+            if (extras != null && downloadId.equals(
+                    extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
+                mNotificationBuilder.setExtras(null);
+                mNotificationManager.cancel(NOTIFICATION_ID);
+            } else if (!mUpdaterController.hasActiveDownloads()) {
+                mNotificationManager.cancel(NOTIFICATION_ID);
+            }
+        }
+    };
+
     private boolean networkWarn;
     private NetworkCallback mNetworkCallback = new NetworkCallback() {
 
@@ -100,8 +143,8 @@ public class UpdaterService extends Service {
             }
 
             if (!networkWarn || networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) {
-                if (mUpdaterController.hasActiveDownloads()) {
-                    mUpdaterController.resumeDownload(mUpdaterController.getActiveDownloadTag());
+                for (String downloadId : mUpdaterController.getActiveDownloads()) {
+                    mUpdaterController.resumeDownload(downloadId);
                 }
             }
         }
@@ -110,7 +153,6 @@ public class UpdaterService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        mOkDownload = OkDownload.getInstance();
         mUpdaterController = UpdaterController.getInstance(this);
         mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 
@@ -132,41 +174,7 @@ public class UpdaterService extends Service {
                 PendingIntent.FLAG_UPDATE_CURRENT);
         mNotificationBuilder.setContentIntent(intent);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    DownloadTask downloadTask = mOkDownload.getTask(downloadId);
-                    setNotificationTitle(mUpdaterController.getUpdate(downloadId).getDisplayVersion());
-                    Bundle extras = new Bundle();
-                    extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
-                    mNotificationBuilder.setExtras(extras);
-                    handleUpdateStatusChange(downloadTask);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    DownloadTask downloadTask = mOkDownload.getTask(downloadId);
-                    handleDownloadProgressChange(downloadTask);
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleInstallProgress(update);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    Bundle extras = mNotificationBuilder.getExtras();
-                    if (extras != null && downloadId.equals(
-                            extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
-                        mNotificationBuilder.setExtras(null);
-                        mNotificationManager.cancel(NOTIFICATION_ID);
-                    } else if (!mUpdaterController.hasActiveDownloads()) {
-                        mNotificationManager.cancel(NOTIFICATION_ID);
-                    }
-                }
-            }
-        };
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+        mUpdaterController.getEventBus().subscribe(mEventSubscriber, DateUtils.SECOND_IN_MILLIS);
 
         networkWarn = CommonUtil.getMainPrefs(this).getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
 
@@ -174,12 +182,16 @@ public class UpdaterService extends Service {
         req.addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
         req.removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN);
 
-        mConnectivityManager.registerNetworkCallback(req.build(), mNetworkCallback);
+        mConnectivityManager.registerNetworkCallback(req.build(), mNetworkCallback,
+                new Handler(Looper.getMainLooper()));
+
+        // Pick up the downloads that were queued before the process was restarted
+        mUpdaterController.scheduleDownloads();
     }
 
     @Override
     public void onDestroy() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.getEventBus().unsubscribe(mEventSubscriber);
         mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
         super.onDestroy();
     }
@@ -222,7 +234,7 @@ public class UpdaterService extends Service {
         } else if (ACTION_INSTALL_UPDATE.equals(intent.getAction())) {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             try {
-                if (CommonUtil.isABUpdate(mUpdaterController.getUpdate(downloadId).getFile())) {
+                if (mUpdaterController.getPackageMetadata(downloadId).isABUpdate()) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this, mUpdaterController);
                     installer.install(downloadId);
                 } else {
@@ -234,6 +246,10 @@ public class UpdaterService extends Service {
                 mUpdaterController.getUpdate(downloadId).setStatus(UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
             }
+        } else if (ACTION_STREAM_UPDATE.equals(intent.getAction())) {
+            String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
+            ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this, mUpdaterController);
+            installer.installStreaming(downloadId);
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
@@ -257,8 +273,7 @@ public class UpdaterService extends Service {
         }
     }
 
-    private void handleUpdateStatusChange(DownloadTask downloadTask) {
-        Progress progress = downloadTask.progress;
+    private void handleUpdateStatusChange(Progress progress) {
         switch (progress.status) {
             case Progress.NONE:
             case Progress.WAITING: {
@@ -310,39 +325,17 @@ public class UpdaterService extends Service {
             }
             case Progress.FINISH: {
                 UpdateInfo updateInfo = mUpdaterController.getUpdate(progress.tag);
-                if (updateInfo.getStatus() == UpdateStatus.INSTALLING) {
+                if (updateInfo.getStatus() == UpdateStatus.VERIFYING) {
                     mNotificationBuilder.mActions.clear();
-                    mNotificationBuilder.setProgress(0, 0, false);
                     mNotificationBuilder.setStyle(mNotificationStyle);
                     mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
-                    mNotificationStyle.setSummaryText(null);
-                    String text = UpdateInstaller.isInstalling() ?
-                            getString(R.string.dialog_prepare_zip_message_notification) :
-                            getString(R.string.installing_update_notification);
+                    String text = getString(R.string.download_verifying_notification);
                     mNotificationStyle.bigText(text);
-                    mNotificationBuilder.setContentText(null);
                     mNotificationBuilder.setTicker(text);
                     mNotificationBuilder.setOngoing(true);
                     mNotificationBuilder.setAutoCancel(false);
-                    startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
-                    mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
-                } else if (updateInfo.getStatus() == UpdateStatus.INSTALLED) {
-                    stopForeground(STOP_FOREGROUND_DETACH);
-                    mNotificationBuilder.setProgress(0, 0, false);
-                    mNotificationBuilder.setStyle(null);
-                    mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
-                    String text = getString(R.string.installing_update_finished_notification);
-                    mNotificationBuilder.setContentText(text);
-                    mNotificationBuilder.addAction(R.drawable.ic_action_reboot,
-                            getString(R.string.action_reboot),
-                            getRebootPendingIntent());
-                    mNotificationBuilder.setTicker(text);
-                    mNotificationBuilder.setOngoing(false);
-                    mNotificationBuilder.setAutoCancel(true);
-                    mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
-                    tryStopSelf();
-                    break;
-                } else {
+                    handleVerifyProgress(updateInfo);
+                } else if (!handleInstallStatusChange(updateInfo)) {
                     stopForeground(STOP_FOREGROUND_DETACH);
                     mNotificationBuilder.mActions.clear();
                     mNotificationBuilder.setProgress(0, 0, false);
@@ -362,9 +355,9 @@ public class UpdaterService extends Service {
                 Log.i(TAG, progress.exception.getMessage());
                 progress.exception.printStackTrace();
                 if (progress.exception instanceof OkGoException) {
-                    downloadTask.restart();
+                    mUpdaterController.restartDownload(progress.tag);
                 } else if (progress.exception instanceof SSLHandshakeException) {
-                    downloadTask.start();
+                    mUpdaterController.resumeDownload(progress.tag);
                 } else if (progress.exception instanceof SSLException
                         || progress.exception instanceof UnknownHostException
                         || progress.exception instanceof StreamResetException) {
@@ -414,21 +407,25 @@ public class UpdaterService extends Service {
                     mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
                     tryStopSelf();
                 } else {
-                    downloadTask.start();
+                    mUpdaterController.resumeDownload(progress.tag);
                 }
                 break;
             }
         }
     }
 
-    private void handleDownloadProgressChange(DownloadTask downloadTask) {
-        Progress progress = downloadTask.progress;
+    private void handleDownloadProgressChange(UpdateInfo update) {
+        if (update.getStatus() == UpdateStatus.VERIFYING) {
+            handleVerifyProgress(update);
+            return;
+        }
+        Progress progress = update.getProgress();
         mNotificationBuilder.setProgress((int) progress.totalSize, (int) progress.currentSize, false);
 
         String percent = NumberFormat.getPercentInstance().format(progress.fraction);
         mNotificationStyle.setSummaryText(percent);
 
-        setNotificationTitle(mUpdaterController.getUpdate(progress.tag).getDisplayVersion());
+        setNotificationTitle(update.getDisplayVersion(this));
 
         if (progress.extra1 != null) {
             mNotificationStyle.bigText(progress.extra1.toString());
@@ -437,8 +434,58 @@ public class UpdaterService extends Service {
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
+    private void setNotificationExtras(UpdateInfo update) {
+        setNotificationTitle(update.getDisplayVersion(this));
+        Bundle extras = new Bundle();
+        extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, update.getName());
+        mNotificationBuilder.setExtras(extras);
+    }
+
+    /**
+     * Shows the notification of an update that is being or has been installed.
+     *
+     * @return false if the update is neither
+     */
+    private boolean handleInstallStatusChange(UpdateInfo updateInfo) {
+        if (updateInfo.getStatus() == UpdateStatus.INSTALLING) {
+            mNotificationBuilder.mActions.clear();
+            mNotificationBuilder.setProgress(0, 0, false);
+            mNotificationBuilder.setStyle(mNotificationStyle);
+            mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
+            mNotificationStyle.setSummaryText(null);
+            String text = UpdateInstaller.isInstalling() ?
+                    getString(R.string.dialog_prepare_zip_message_notification) :
+                    getString(R.string.installing_update_notification);
+            mNotificationStyle.bigText(text);
+            mNotificationBuilder.setContentText(null);
+            mNotificationBuilder.setTicker(text);
+            mNotificationBuilder.setOngoing(true);
+            mNotificationBuilder.setAutoCancel(false);
+            startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
+            mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+        } else if (updateInfo.getStatus() == UpdateStatus.INSTALLED) {
+            stopForeground(STOP_FOREGROUND_DETACH);
+            mNotificationBuilder.setProgress(0, 0, false);
+            mNotificationBuilder.setStyle(null);
+            mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
+            String text = getString(R.string.installing_update_finished_notification);
+            mNotificationBuilder.setContentText(text);
+            mNotificationBuilder.addAction(R.drawable.ic_action_reboot,
+                    getString(R.string.action_reboot),
+                    getRebootPendingIntent());
+            mNotificationBuilder.setTicker(text);
+            mNotificationBuilder.setOngoing(false);
+            mNotificationBuilder.setAutoCancel(true);
+            mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+            tryStopSelf();
+        } else {
+            return false;
+        }
+        return true;
+    }
+
     private void handleInstallProgress(UpdateInfo update) {
-        setNotificationTitle(update.getDisplayVersion());
+        setNotificationTitle(update.getDisplayVersion(this));
         float progress = update.getInstallProgress();
         mNotificationBuilder.setProgress(100, Math.round(progress * 100), false);
         String percent = NumberFormat.getPercentInstance().format(progress);
@@ -451,6 +498,15 @@ public class UpdaterService extends Service {
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
+    private void handleVerifyProgress(UpdateInfo update) {
+        setNotificationTitle(update.getDisplayVersion(this));
+        float progress = update.getVerifyProgress();
+        mNotificationBuilder.setProgress(100, Math.round(progress * 100), false);
+        String percent = NumberFormat.getPercentInstance().format(progress);
+        mNotificationStyle.setSummaryText(percent);
+        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
     private void setNotificationTitle(String version) {
         mNotificationStyle.setBigContentTitle(version);
         mNotificationBuilder.setContentTitle(version);
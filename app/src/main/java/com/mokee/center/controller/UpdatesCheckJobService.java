@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.lzy.okgo.OkGo;
+import com.lzy.okgo.model.Response;
+import com.mokee.center.MKCenterApplication;
+import com.mokee.center.misc.Constants;
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.receiver.UpdatesCheckReceiver;
+import com.mokee.center.util.CommonUtil;
+import com.mokee.center.util.OkGoUtil;
+import com.mokee.center.util.UpdateListCallback;
+
+import java.util.LinkedList;
+
+/**
+ * Runs a background update check once the device has a network that is not roaming,
+ * and keeps the process alive until the new list is stored.
+ * <p>
+ * A check that takes longer than {@link #CHECK_TIMEOUT} is given up, its request is
+ * cancelled and it is retried like a failed one. The outcome and the time from scheduling to the end of every check are
+ * counted in {@link Constants#UPDATE_CHECK_STATS_PREF}. A check that is still marked as
+ * running when the next one starts was lost, most likely with its process.
+ */
+public class UpdatesCheckJobService extends JobService {
+
+    private static final String TAG = "UpdatesCheckJobService";
+    // Apart from the tag of the app's own fetches, which it cancels when it is closed
+    private static final String REQUEST_TAG = "UpdatesCheckJob";
+
+    private static final int JOB_ID = 1002;
+    private static final String EXTRA_SCHEDULED_AT = "scheduled_at";
+
+    private static final long CHECK_TIMEOUT = 2 * DateUtils.MINUTE_IN_MILLIS;
+    // Roughly a conditional request plus a list, so congested networks can wait
+    private static final long CHECK_BYTES = 64 * 1024;
+    private static final long BOOT_DELAY = 10 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long BOOT_JITTER = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final String OUTCOME_UPDATED = "updated";
+    private static final String OUTCOME_NOT_MODIFIED = "not_modified";
+    private static final String OUTCOME_FAILED = "failed";
+    private static final String OUTCOME_TIMED_OUT = "timed_out";
+    private static final String OUTCOME_STOPPED = "stopped";
+    private static final String OUTCOME_LOST = "lost";
+    private static final String KEY_RUNNING_SINCE = "running_since";
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTimeout = this::onTimeout;
+
+    private JobParameters mParams;
+    private boolean mFetched;
+
+    public static void schedule(Context context) {
+        schedule(context, newJob(context));
+    }
+
+    /**
+     * Leaves the check out of the rush after boot: it runs once the device is idle, or
+     * after {@link #BOOT_DELAY} and a random part of {@link #BOOT_JITTER} at the latest,
+     * network or not.
+     */
+    public static void scheduleAfterBoot(Context context) {
+        long deadline = BOOT_DELAY + (long) (Math.random() * BOOT_JITTER);
+        schedule(context, newJob(context)
+                .setRequiresDeviceIdle(true)
+                .setOverrideDeadline(deadline));
+    }
+
+    private static JobInfo.Builder newJob(Context context) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putLong(EXTRA_SCHEDULED_AT, System.currentTimeMillis());
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID, new ComponentName(context, UpdatesCheckJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_NOT_ROAMING)
+                .setPersisted(true)
+                .setExtras(extras);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            builder.setEstimatedNetworkBytes(CHECK_BYTES, JobInfo.NETWORK_BYTES_UNKNOWN);
+        }
+        return builder;
+    }
+
+    private static void schedule(Context context, JobInfo.Builder builder) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.getPendingJob(JOB_ID) != null) {
+            // Scheduling it again would stop a check that is already running
+            Log.d(TAG, "Updates check already pending");
+            return;
+        }
+        jobScheduler.schedule(builder.build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        SharedPreferences stats = getStats(this);
+        if (stats.contains(KEY_RUNNING_SINCE)) {
+            record(OUTCOME_LOST, 0);
+        }
+        stats.edit().putLong(KEY_RUNNING_SINCE, params.getExtras().getLong(EXTRA_SCHEDULED_AT)).apply();
+
+        mParams = params;
+        mFetched = false;
+        mHandler.postDelayed(mTimeout, CHECK_TIMEOUT);
+        final Context context = getApplicationContext();
+        final SharedPreferences mainPrefs = CommonUtil.getMainPrefs(context);
+        OkGoUtil.fetchAvailableUpdates(context, REQUEST_TAG, new UpdateListCallback(context) {
+            @Override
+            public void onSuccess(Response<LinkedList<UpdateInfo>> response) {
+                mFetched = true;
+                // In case we set a one-shot check because of a previous failure
+                UpdatesCheckReceiver.cancelUpdatesCheck(context);
+                mainPrefs.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis()).apply();
+                final LinkedList<UpdateInfo> updates = response.body();
+                if (updates == null) {
+                    Log.d(TAG, "Update list not modified");
+                    finish(params, OUTCOME_NOT_MODIFIED);
+                    return;
+                }
+                UpdateCatalog updateCatalog = UpdateCatalog.getInstance(context);
+                UpdateCatalog.Snapshot previous = updateCatalog.getSnapshot();
+                updateCatalog.publish(updates, () -> {
+                    saveValidators();
+                    mHandler.post(() -> finish(params, OUTCOME_UPDATED));
+                });
+                UpdatesCheckReceiver.onUpdatesFetched(context, previous, updates);
+            }
+
+            @Override
+            public void onError(Response<LinkedList<UpdateInfo>> response) {
+                super.onError(response);
+                if (response.getRawCall() != null && response.getRawCall().isCanceled()) {
+                    // Timed out, the next check is already scheduled
+                    return;
+                }
+                if (response.getRawResponse() != null && response.getRawResponse().isSuccessful()) {
+                    Log.e(TAG, "Could not parse list, scheduling new check", response.getException());
+                    mainPrefs.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis()).apply();
+                } else {
+                    Log.e(TAG, "Could not download updates list, scheduling new check");
+                }
+                if (mParams != params) {
+                    // Stopped, JobScheduler already runs the check again
+                    return;
+                }
+                UpdatesCheckReceiver.scheduleUpdatesCheck(context);
+                finish(params, OUTCOME_FAILED);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The network went away. A list that still arrives is stored as usual, but the
+        // check runs again once the network is back, so failures schedule no retry.
+        if (mParams == params) {
+            mHandler.removeCallbacks(mTimeout);
+            mParams = null;
+            record(OUTCOME_STOPPED, params.getExtras().getLong(EXTRA_SCHEDULED_AT));
+        }
+        return true;
+    }
+
+    private void onTimeout() {
+        JobParameters params = mParams;
+        if (params == null) {
+            return;
+        }
+        if (mFetched) {
+            // Only storing the list took that long, no need to fetch it again
+            Log.w(TAG, "Storing the update list timed out");
+        } else {
+            Log.w(TAG, "Updates check timed out, scheduling new check");
+            OkGo.cancelTag(MKCenterApplication.getInstance().getClient().build(), REQUEST_TAG);
+            UpdatesCheckReceiver.scheduleUpdatesCheck(this);
+        }
+        finish(params, OUTCOME_TIMED_OUT);
+    }
+
+    private void finish(JobParameters params, String outcome) {
+        if (mParams != params) {
+            // Already stopped or timed out
+            return;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        mParams = null;
+        record(outcome, params.getExtras().getLong(EXTRA_SCHEDULED_AT));
+        jobFinished(params, false);
+    }
+
+    private void record(String outcome, long scheduledAt) {
+        SharedPreferences stats = getStats(this);
+        int count = stats.getInt(outcome + "_count", 0) + 1;
+        long millis = stats.getLong(outcome + "_millis", 0);
+        long latency = scheduledAt > 0 ? System.currentTimeMillis() - scheduledAt : 0;
+        stats.edit()
+                .remove(KEY_RUNNING_SINCE)
+                .putInt(outcome + "_count", count)
+                .putLong(outcome + "_millis", millis + latency)
+                .apply();
+        Log.d(TAG, "Updates check " + outcome + " " + latency + " ms after it was scheduled, "
+                + count + " times so far");
+    }
+
+    private static SharedPreferences getStats(Context context) {
+        return context.getSharedPreferences(Constants.UPDATE_CHECK_STATS_PREF, Context.MODE_PRIVATE);
+    }
+}
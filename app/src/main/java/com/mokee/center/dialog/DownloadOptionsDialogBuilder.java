@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.dialog;
+
+import android.app.TimePickerDialog;
+import android.content.Context;
+import android.text.format.DateFormat;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.Button;
+import android.widget.Switch;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
+
+import com.mokee.center.R;
+import com.mokee.center.model.QueuedDownload;
+
+import java.util.Calendar;
+
+/**
+ * Lets the user queue a download with a priority and the conditions it waits for. The
+ * current options of an already queued download are shown to begin with.
+ */
+public class DownloadOptionsDialogBuilder extends AlertDialog.Builder {
+
+    private final String mDownloadId;
+    private final QueuedDownload mCurrent;
+    private final OnQueueListener mListener;
+
+    private int mWindowStart;
+    private int mWindowEnd;
+
+    public DownloadOptionsDialogBuilder(@NonNull Context context, String downloadId,
+                                        QueuedDownload current, OnQueueListener listener) {
+        super(context);
+        mDownloadId = downloadId;
+        mCurrent = current;
+        mListener = listener;
+    }
+
+    @Override
+    public AlertDialog create() {
+        View view = LayoutInflater.from(getContext()).inflate(R.layout.download_options_dialog, null);
+        Switch highPriority = view.findViewById(R.id.download_options_high_priority);
+        Switch unmetered = view.findViewById(R.id.download_options_unmetered);
+        Switch charging = view.findViewById(R.id.download_options_charging);
+        Switch window = view.findViewById(R.id.download_options_window);
+        Button windowStart = view.findViewById(R.id.download_options_window_start);
+        Button windowEnd = view.findViewById(R.id.download_options_window_end);
+
+        if (mCurrent != null) {
+            highPriority.setChecked(mCurrent.getPriority() == QueuedDownload.PRIORITY_HIGH);
+            unmetered.setChecked(mCurrent.hasConstraint(QueuedDownload.CONSTRAINT_UNMETERED));
+            charging.setChecked(mCurrent.hasConstraint(QueuedDownload.CONSTRAINT_CHARGING));
+            window.setChecked(mCurrent.hasWindow());
+        }
+        if (mCurrent != null && mCurrent.hasWindow()) {
+            mWindowStart = mCurrent.getWindowStart();
+            mWindowEnd = mCurrent.getWindowEnd();
+        } else {
+            mWindowStart = getContext().getResources().getInteger(R.integer.download_window_start);
+            mWindowEnd = getContext().getResources().getInteger(R.integer.download_window_end);
+        }
+
+        windowStart.setText(getContext().getString(R.string.download_options_window_start,
+                formatMinute(mWindowStart)));
+        windowEnd.setText(getContext().getString(R.string.download_options_window_end,
+                formatMinute(mWindowEnd)));
+        windowStart.setEnabled(window.isChecked());
+        windowEnd.setEnabled(window.isChecked());
+        window.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            windowStart.setEnabled(isChecked);
+            windowEnd.setEnabled(isChecked);
+        });
+        windowStart.setOnClickListener(v -> pickMinute(mWindowStart, minute -> {
+            mWindowStart = minute;
+            windowStart.setText(getContext().getString(R.string.download_options_window_start,
+                    formatMinute(minute)));
+        }));
+        windowEnd.setOnClickListener(v -> pickMinute(mWindowEnd, minute -> {
+            mWindowEnd = minute;
+            windowEnd.setText(getContext().getString(R.string.download_options_window_end,
+                    formatMinute(minute)));
+        }));
+
+        setTitle(R.string.menu_download_options);
+        setView(view);
+        setPositiveButton(R.string.action_download, (dialog, which) -> {
+            int priority = QueuedDownload.PRIORITY_NORMAL;
+            if (highPriority.isChecked()) {
+                priority = QueuedDownload.PRIORITY_HIGH;
+            } else if (mCurrent != null && mCurrent.getPriority() < QueuedDownload.PRIORITY_NORMAL) {
+                // Keep background prefetches behind what the user asked for
+                priority = mCurrent.getPriority();
+            }
+            int constraints = 0;
+            if (unmetered.isChecked()) {
+                constraints |= QueuedDownload.CONSTRAINT_UNMETERED;
+            }
+            if (charging.isChecked()) {
+                constraints |= QueuedDownload.CONSTRAINT_CHARGING;
+            }
+            QueuedDownload.Builder builder = new QueuedDownload.Builder()
+                    .setDownloadId(mDownloadId)
+                    .setPriority(priority)
+                    .setConstraints(constraints);
+            if (window.isChecked() && mWindowStart != mWindowEnd) {
+                builder.setWindow(mWindowStart, mWindowEnd);
+            }
+            mListener.onQueue(builder.build());
+        });
+        setNegativeButton(android.R.string.cancel, null);
+
+        return super.create();
+    }
+
+    private void pickMinute(int minuteOfDay, OnMinutePickedListener listener) {
+        new TimePickerDialog(getContext(),
+                (picker, hourOfDay, minute) -> listener.onMinutePicked(hourOfDay * 60 + minute),
+                minuteOfDay / 60, minuteOfDay % 60, DateFormat.is24HourFormat(getContext())).show();
+    }
+
+    private String formatMinute(int minuteOfDay) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, minuteOfDay / 60);
+        calendar.set(Calendar.MINUTE, minuteOfDay % 60);
+        return DateFormat.getTimeFormat(getContext()).format(calendar.getTime());
+    }
+
+    private interface OnMinutePickedListener {
+        void onMinutePicked(int minuteOfDay);
+    }
+
+    public interface OnQueueListener {
+        void onQueue(QueuedDownload entry);
+    }
+}
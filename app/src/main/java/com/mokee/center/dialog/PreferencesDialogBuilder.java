@@ -22,9 +22,13 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.SeekBar;
 import android.widget.Switch;
+import android.widget.TextView;
 
+import com.mokee.center.MKCenterApplication;
 import com.mokee.center.R;
+import com.mokee.center.controller.PrefetchJobService;
 import com.mokee.center.controller.UpdaterService;
 import com.mokee.center.misc.Constants;
 import com.mokee.center.util.CommonUtil;
@@ -44,15 +48,64 @@ public class PreferencesDialogBuilder extends AlertDialog.Builder {
         Switch autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         Switch dataWarning = view.findViewById(R.id.preferences_mobile_data_warning);
         Switch abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
+        Switch abStreamingInstall = view.findViewById(R.id.preferences_ab_streaming_install);
+        TextView connectionsTitle = view.findViewById(R.id.preferences_download_connections_title);
+        SeekBar connections = view.findViewById(R.id.preferences_download_connections);
+        TextView concurrentTitle = view.findViewById(R.id.preferences_concurrent_downloads_title);
+        SeekBar concurrent = view.findViewById(R.id.preferences_concurrent_downloads);
+        Switch prefetchUpdates = view.findViewById(R.id.preferences_prefetch_updates);
 
         if (!CommonUtil.isABDevice()) {
             abPerfMode.setVisibility(View.GONE);
+            abStreamingInstall.setVisibility(View.GONE);
+        }
+
+        if (!MKCenterApplication.getInstance().getDonationInfo().isBasic()) {
+            connectionsTitle.setVisibility(View.GONE);
+            connections.setVisibility(View.GONE);
         }
 
         SharedPreferences prefs = CommonUtil.getMainPrefs(getContext());
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
         dataWarning.setChecked(prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
+        abStreamingInstall.setChecked(prefs.getBoolean(Constants.PREF_AB_STREAMING_INSTALL, false));
+        connections.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                connectionsTitle.setText(getContext().getString(R.string.pref_download_connections, progress));
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+        connections.setProgress(prefs.getInt(Constants.PREF_DOWNLOAD_CONNECTIONS, 1));
+        connectionsTitle.setText(getContext().getString(R.string.pref_download_connections,
+                connections.getProgress()));
+        concurrent.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                concurrentTitle.setText(getContext().getString(R.string.pref_concurrent_downloads, progress));
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+        concurrent.setProgress(prefs.getInt(Constants.PREF_CONCURRENT_DOWNLOADS,
+                getContext().getResources().getInteger(R.integer.concurrent_downloads)));
+        concurrentTitle.setText(getContext().getString(R.string.pref_concurrent_downloads,
+                concurrent.getProgress()));
+        prefetchUpdates.setChecked(prefs.getBoolean(Constants.PREF_PREFETCH_UPDATES, false));
 
         setTitle(R.string.menu_preferences);
         setView(view);
@@ -64,10 +117,20 @@ public class PreferencesDialogBuilder extends AlertDialog.Builder {
                             dataWarning.isChecked())
                             .putBoolean(Constants.PREF_AB_PERF_MODE,
                                     abPerfMode.isChecked())
+                    .putBoolean(Constants.PREF_AB_STREAMING_INSTALL, abStreamingInstall.isChecked())
+                    .putInt(Constants.PREF_DOWNLOAD_CONNECTIONS, connections.getProgress())
+                    .putInt(Constants.PREF_CONCURRENT_DOWNLOADS, concurrent.getProgress())
+                    .putBoolean(Constants.PREF_PREFETCH_UPDATES, prefetchUpdates.isChecked())
                     .apply();
 
+                    if (!prefetchUpdates.isChecked()) {
+                        PrefetchJobService.cancel(getContext());
+                    }
+
                     boolean enableABPerfMode = abPerfMode.isChecked();
                     mUpdaterService.getUpdaterController().setPerformanceMode(enableABPerfMode);
+                    // A larger budget lets waiting downloads start right away
+                    mUpdaterService.getUpdaterController().scheduleDownloads();
         });
 
         return super.create();
@@ -17,11 +17,9 @@
 
 package com.mokee.center.fragment;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
@@ -34,22 +32,21 @@ import android.view.animation.Animation;
 import android.view.animation.LinearInterpolator;
 import android.view.animation.RotateAnimation;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceCategory;
 import androidx.preference.PreferenceFragmentCompat;
 
 import com.lzy.okgo.OkGo;
-import com.lzy.okgo.callback.StringCallback;
 import com.lzy.okgo.model.Response;
 import com.lzy.okserver.OkDownload;
 import com.mokee.center.MKCenterApplication;
 import com.mokee.center.R;
 import com.mokee.center.activity.MainActivity;
-import com.mokee.center.controller.UpdaterController;
+import com.mokee.center.controller.CatalogDiff;
+import com.mokee.center.controller.UpdateCatalog;
+import com.mokee.center.controller.UpdateEventBus;
 import com.mokee.center.controller.UpdaterService;
 import com.mokee.center.dialog.PreferencesDialogBuilder;
-import com.mokee.center.misc.State;
 import com.mokee.center.model.DonationInfo;
 import com.mokee.center.model.UpdateInfo;
 import com.mokee.center.preference.AvailableUpdatesPreferenceCategory;
@@ -64,16 +61,13 @@ import com.mokee.center.util.CommonUtil;
 import com.mokee.center.util.FileUtil;
 import com.mokee.center.util.IntentUtil;
 import com.mokee.center.util.OkGoUtil;
+import com.mokee.center.util.UpdateListCallback;
+import com.mokee.center.util.UpdateListParser;
 import com.mokee.security.LicenseUtils;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.File;
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.UUID;
 
 import static com.mokee.center.misc.Constants.AVAILABLE_UPDATES_TAG;
 import static com.mokee.center.misc.Constants.DONATION_RESULT_OK;
@@ -93,8 +87,32 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
 
     private static final String TAG = UpdaterFragment.class.getName();
 
+    private static final long PROGRESS_UPDATE_INTERVAL = 500;
+
     private UpdaterService mUpdaterService;
-    private BroadcastReceiver mBroadcastReceiver;
+    private final UpdateEventBus.Subscriber mEventSubscriber = new UpdateEventBus.Subscriber() {
+
+        @Override
+        public void onUpdateStatusChanged(UpdateInfo update) {
+            updateFeatureStatus();
+            updatePreferenceStatus(update.getName());
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateInfo update) {
+            updatePreferenceStatus(update.getName());
+        }
+
+        @Override
+        public void onInstallProgress(UpdateInfo update) {
+            updatePreferenceStatus(update.getName());
+        }
+
+        @Override
+        public void onUpdateRemoved(String downloadId) {
+            updatePreferenceStatus(downloadId);
+        }
+    };
 
     private View mRefreshIconView;
     private RotateAnimation mRefreshAnimation;
@@ -120,12 +138,15 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
             mUpdatesCategory.setUpdaterController(mUpdaterService.getUpdaterController());
+            mUpdaterService.getUpdaterController().getEventBus()
+                    .subscribe(mEventSubscriber, PROGRESS_UPDATE_INTERVAL);
             updateFeatureStatus();
             getUpdatesList();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mUpdaterService.getUpdaterController().getEventBus().unsubscribe(mEventSubscriber);
             mUpdatesCategory.setUpdaterController(null);
             mUpdaterService = null;
         }
@@ -135,20 +156,6 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    updateFeatureStatus();
-                }
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                UpdatePreference updatePreference = findPreference(downloadId);
-                if (updatePreference != null) {
-                    updatePreference.updateStatus();
-                }
-            }
-        };
-
         mRefreshAnimation = new RotateAnimation(0, 360, Animation.RELATIVE_TO_SELF, 0.5f,
                 Animation.RELATIVE_TO_SELF, 0.5f);
         mRefreshAnimation.setInterpolator(new LinearInterpolator());
@@ -217,21 +224,14 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
         Intent intent = new Intent(getContext(), UpdaterService.class);
         mMainActivity.startService(intent);
         mMainActivity.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
-
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(mMainActivity).registerReceiver(mBroadcastReceiver, intentFilter);
     }
 
     @Override
     public void onStop() {
         mDonationPrefs.unregisterOnSharedPreferenceChangeListener(this);
         mMainPrefs.unregisterOnSharedPreferenceChangeListener(this);
-        LocalBroadcastManager.getInstance(mMainActivity).unregisterReceiver(mBroadcastReceiver);
         if (mUpdaterService != null) {
+            mUpdaterService.getUpdaterController().getEventBus().unsubscribe(mEventSubscriber);
             mMainActivity.unbindService(mConnection);
         }
         super.onStop();
@@ -257,79 +257,82 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
         }
     }
 
-    private void loadUpdatesList(LinkedList<UpdateInfo> updates, boolean manualRefresh) {
+    private CatalogDiff loadUpdatesList(List<UpdateInfo> updates, boolean manualRefresh) {
         if (updates.size() > 0) {
             Log.d(TAG, "Adding remote updates");
         }
-        UpdaterController controller = mUpdaterService.getUpdaterController();
-        boolean newUpdates = false;
-
-        if (manualRefresh) {
-            controller.cleanAvailableUpdates();
-        }
-
-        List<String> updatesOnline = new ArrayList<>();
-        for (UpdateInfo update : updates) {
-            newUpdates |= controller.addUpdate(update);
-            updatesOnline.add(update.getName());
-        }
-        controller.setUpdatesAvailableOnline(updatesOnline);
+        CatalogDiff diff = mUpdaterService.getUpdaterController().applyUpdates(updates);
 
         if (manualRefresh) {
-            mMainActivity.makeSnackbar(newUpdates ? R.string.updates_found : R.string.no_updates_found).show();
+            mMainActivity.makeSnackbar(diff.getAdded().isEmpty()
+                    ? R.string.no_updates_found : R.string.updates_found).show();
         }
 
-        mUpdatesCategory.refreshPreferences();
+        mUpdatesCategory.applyCatalogDiff(diff);
+        return diff;
     }
 
     private void getUpdatesList() {
-        File jsonFile = FileUtil.getCachedUpdateList(mMainActivity);
-        if (jsonFile.exists()) {
-            loadUpdatesList(State.loadState(jsonFile), false);
+        UpdateCatalog.Snapshot snapshot = UpdateCatalog.getInstance(mMainActivity).getSnapshot();
+        if (snapshot.isStored()) {
+            loadUpdatesList(snapshot.getUpdates(), false);
             Log.d(TAG, "Cached list parsed");
         } else {
             mUpdatesCategory.refreshPreferences();
         }
     }
 
-    private void processNewJson(Response<String> response, File json, File jsonNew, boolean manualRefresh) {
-        try {
-            final LinkedList<UpdateInfo> updates = CommonUtil.parseJson(getContext(), response.body(), TAG);
-            State.saveState(updates, jsonNew);
-            loadUpdatesList(updates, manualRefresh);
-            mMainPrefs.edit().remove(PREF_OUT_OF_DATE)
-                    .putLong(PREF_LAST_UPDATE_CHECK, System.currentTimeMillis()).apply();
-            if (json.exists() && CommonUtil.checkForNewUpdates(json, jsonNew)) {
-                UpdatesCheckReceiver.updateRepeatingUpdatesCheck(getContext());
-            }
-            // In case we set a one-shot check because of a previous failure
-            UpdatesCheckReceiver.cancelUpdatesCheck(mMainActivity);
-            jsonNew.renameTo(json);
-        } catch (JSONException e) {
-            try {
-                JSONObject status = new JSONObject(response.body());
-                mMainPrefs.edit().putBoolean(PREF_OUT_OF_DATE, status.has(PREF_OUT_OF_DATE)).apply();
-            } catch (JSONException ex) {
-            }
-            Log.e(TAG, "Could not read json", e);
-            json.delete();
-            loadUpdatesList(new LinkedList<>(), manualRefresh);
+    private void processNewJson(LinkedList<UpdateInfo> updates, boolean manualRefresh, Runnable onStored) {
+        UpdateCatalog updateCatalog = UpdateCatalog.getInstance(mMainActivity);
+        boolean hadList = updateCatalog.getSnapshot().isStored();
+        updateCatalog.publish(updates, onStored);
+        CatalogDiff diff = loadUpdatesList(updates, manualRefresh);
+        mMainPrefs.edit().remove(PREF_OUT_OF_DATE)
+                .putLong(PREF_LAST_UPDATE_CHECK, System.currentTimeMillis()).apply();
+        if (hadList && !diff.getAdded().isEmpty()) {
+            UpdatesCheckReceiver.updateRepeatingUpdatesCheck(getContext());
         }
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(mMainActivity);
+    }
+
+    private void processUnchangedJson(boolean manualRefresh) {
+        Log.d(TAG, "Update list not modified");
+        mMainPrefs.edit().remove(PREF_OUT_OF_DATE)
+                .putLong(PREF_LAST_UPDATE_CHECK, System.currentTimeMillis()).apply();
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(mMainActivity);
+        if (manualRefresh) {
+            mMainActivity.makeSnackbar(R.string.no_updates_found).show();
+        }
+    }
+
+    private void processInvalidJson(Throwable e, boolean manualRefresh) {
+        mMainPrefs.edit().putBoolean(PREF_OUT_OF_DATE, e instanceof UpdateListParser.NotAListException
+                && ((UpdateListParser.NotAListException) e).isOutOfDate()).apply();
+        Log.e(TAG, "Could not read json", e);
+        UpdateCatalog.getInstance(mMainActivity).clear();
+        loadUpdatesList(new LinkedList<>(), manualRefresh);
     }
 
     private void downloadUpdatesList(boolean manualRefresh) {
-        final File json = FileUtil.getCachedUpdateList(mMainActivity);
-        final File jsonNew = new File(mMainActivity.getCacheDir().getAbsolutePath() + UUID.randomUUID());
-        OkGoUtil.fetchAvailableUpdates(getContext(), new StringCallback() {
+        OkGoUtil.fetchAvailableUpdates(getContext(), new UpdateListCallback(getContext()) {
             @Override
-            public void onSuccess(Response<String> response) {
-                processNewJson(response, json, jsonNew, manualRefresh);
+            public void onSuccess(Response<LinkedList<UpdateInfo>> response) {
+                if (response.body() == null) {
+                    processUnchangedJson(manualRefresh);
+                } else {
+                    processNewJson(response.body(), manualRefresh, this::saveValidators);
+                }
             }
 
             @Override
-            public void onError(Response<String> response) {
+            public void onError(Response<LinkedList<UpdateInfo>> response) {
                 super.onError(response);
-                if (manualRefresh) {
+                if (response.getRawResponse() != null && response.getRawResponse().isSuccessful()) {
+                    // The list was received but could not be parsed
+                    processInvalidJson(response.getException(), manualRefresh);
+                } else if (manualRefresh) {
                     mMainActivity.makeSnackbar(R.string.updates_check_failed).show();
                 }
             }
@@ -364,7 +367,14 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
             mRefreshAnimation.setRepeatCount(0);
             mRefreshIconView.setEnabled(true);
             updateFeatureStatus();
-            mUpdatesCategory.refreshPreferences();
+            mUpdatesCategory.clearPendingListPreferences();
+        }
+    }
+
+    private void updatePreferenceStatus(String downloadId) {
+        UpdatePreference updatePreference = findPreference(downloadId);
+        if (updatePreference != null) {
+            updatePreference.updateStatus();
         }
     }
 
@@ -402,8 +412,7 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
     public boolean onPreferenceClick(Preference preference) {
         if (preference instanceof IncrementalUpdatesPreference
                 || preference instanceof VerifiedUpdatesPreference) {
-            File jsonFile = FileUtil.getCachedUpdateList(mMainActivity);
-            jsonFile.delete();
+            UpdateCatalog.getInstance(mMainActivity).clear();
             downloadUpdatesList(true);
             return true;
         }
@@ -415,8 +424,7 @@ public class UpdaterFragment extends PreferenceFragmentCompat implements SharedP
         if (preference instanceof UpdateTypePreference) {
             if (TextUtils.equals(mUpdateTypePreference.getValue(), newValue.toString()))
                 return false;
-            File jsonFile = FileUtil.getCachedUpdateList(mMainActivity);
-            jsonFile.delete();
+            UpdateCatalog.getInstance(mMainActivity).clear();
             mMainPrefs.edit().putString(PREF_UPDATE_TYPE, newValue.toString()).apply();
             downloadUpdatesList(true);
             int index = mUpdateTypePreference.findIndexOfValue(newValue.toString());
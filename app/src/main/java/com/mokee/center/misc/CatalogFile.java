@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.misc;
+
+import com.mokee.center.model.UpdateInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The binary format of the cached update list.
+ * <p>
+ * A file starts with a magic number, the format version and a schema: the tag and the
+ * type of every field, in the order the fields are written in each record. Fields with
+ * unknown tags are skipped, so a newer app can add fields without breaking older
+ * readers. The schema is followed by the offset of every record, so a {@link Reader}
+ * only decodes the records that are asked for.
+ * <pre>
+ * int   magic, short version
+ * byte  field count, then per field: byte tag, byte type
+ * int   record count, then per record: int offset
+ * records: the fields in schema order
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes, -1 stands for null. Everything
+ * is big endian.
+ */
+public class CatalogFile {
+
+    private static final int MAGIC = 0x4d4b5543; // MKUC
+    private static final short VERSION = 1;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+
+    private static final byte FIELD_NAME = 1;
+    // Locale specific, only written by older versions and skipped
+    private static final byte FIELD_DISPLAY_VERSION = 2;
+    private static final byte FIELD_MD5 = 3;
+    private static final byte FIELD_DIFF_SIZE = 4;
+    private static final byte FIELD_FILE_SIZE = 5;
+    private static final byte FIELD_TIMESTAMP = 6;
+    private static final byte FIELD_DOWNLOAD_URL = 7;
+    private static final byte FIELD_CHANGELOG_URL = 8;
+    private static final byte FIELD_BLOCK_MANIFEST_URL = 9;
+    private static final byte FIELD_ROLLOUT = 10;
+
+    private static final byte[][] SCHEMA = {
+            {FIELD_NAME, TYPE_STRING},
+            {FIELD_MD5, TYPE_STRING},
+            {FIELD_DIFF_SIZE, TYPE_LONG},
+            {FIELD_FILE_SIZE, TYPE_LONG},
+            {FIELD_TIMESTAMP, TYPE_LONG},
+            {FIELD_DOWNLOAD_URL, TYPE_STRING},
+            {FIELD_CHANGELOG_URL, TYPE_STRING},
+            {FIELD_BLOCK_MANIFEST_URL, TYPE_STRING},
+            {FIELD_ROLLOUT, TYPE_LONG},
+    };
+
+    private CatalogFile() {
+    }
+
+    /**
+     * @return whether the file starts like a catalog, as opposed to an older cache
+     */
+    public static boolean isCatalog(File file) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] magic = new byte[4];
+            return in.read(magic) == magic.length && ByteBuffer.wrap(magic).getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void write(List<UpdateInfo> updates, File file) throws IOException {
+        ByteBuffer buffer = encode(updates);
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return the whole catalog of the given updates, ready to be written
+     */
+    public static ByteBuffer encode(List<UpdateInfo> updates) {
+        byte[][] records = new byte[updates.size()][];
+        int recordsSize = 0;
+        int i = 0;
+        for (UpdateInfo update : updates) {
+            records[i] = encodeRecord(update);
+            recordsSize += records[i].length;
+            i++;
+        }
+
+        int headerSize = 4 + 2 + 1 + SCHEMA.length * 2 + 4 + records.length * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + recordsSize);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.put((byte) SCHEMA.length);
+        for (byte[] field : SCHEMA) {
+            buffer.put(field);
+        }
+        buffer.putInt(records.length);
+        int offset = headerSize;
+        for (byte[] record : records) {
+            buffer.putInt(offset);
+            offset += record.length;
+        }
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes every record of a catalog.
+     */
+    public static LinkedList<UpdateInfo> read(File file) throws IOException {
+        Reader reader = open(file);
+        LinkedList<UpdateInfo> updates = new LinkedList<>();
+        for (int i = 0; i < reader.size(); i++) {
+            updates.add(reader.get(i));
+        }
+        return updates;
+    }
+
+    public static Reader open(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static byte[] encodeRecord(UpdateInfo update) {
+        String[] strings = {update.getName(), update.getMd5(),
+                update.getDownloadUrl(), update.getChangelogUrl(), update.getBlockManifestUrl()};
+        byte[][] bytes = new byte[strings.length][];
+        int size = 4 * 8;
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i] == null ? null : strings[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + (bytes[i] == null ? 0 : bytes[i].length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] field : SCHEMA) {
+            switch (field[0]) {
+                case FIELD_NAME:
+                    putString(buffer, bytes[0]);
+                    break;
+                case FIELD_MD5:
+                    putString(buffer, bytes[1]);
+                    break;
+                case FIELD_DIFF_SIZE:
+                    buffer.putLong(update.getDiffSize());
+                    break;
+                case FIELD_FILE_SIZE:
+                    buffer.putLong(update.getFileSize());
+                    break;
+                case FIELD_TIMESTAMP:
+                    buffer.putLong(update.getTimestamp());
+                    break;
+                case FIELD_DOWNLOAD_URL:
+                    putString(buffer, bytes[2]);
+                    break;
+                case FIELD_CHANGELOG_URL:
+                    putString(buffer, bytes[3]);
+                    break;
+                case FIELD_BLOCK_MANIFEST_URL:
+                    putString(buffer, bytes[4]);
+                    break;
+                case FIELD_ROLLOUT:
+                    buffer.putLong(update.getRollout());
+                    break;
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Random access to the records of a catalog, which are decoded on request.
+     */
+    public static class Reader {
+        private final ByteBuffer mBuffer;
+        private final byte[] mTags;
+        private final byte[] mTypes;
+        private final int mRecordCount;
+        private final int mOffsetsPosition;
+
+        private Reader(ByteBuffer buffer) throws IOException {
+            mBuffer = buffer.order(ByteOrder.BIG_ENDIAN);
+            try {
+                if (mBuffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not a catalog");
+                }
+                short version = mBuffer.getShort(4);
+                if (version > VERSION) {
+                    throw new IOException("Unsupported catalog version " + version);
+                }
+                int fieldCount = mBuffer.get(6) & 0xff;
+                mTags = new byte[fieldCount];
+                mTypes = new byte[fieldCount];
+                for (int i = 0; i < fieldCount; i++) {
+                    mTags[i] = mBuffer.get(7 + i * 2);
+                    mTypes[i] = mBuffer.get(8 + i * 2);
+                    if (mTypes[i] != TYPE_STRING && mTypes[i] != TYPE_LONG) {
+                        throw new IOException("Unknown field type " + mTypes[i]);
+                    }
+                }
+                int position = 7 + fieldCount * 2;
+                mRecordCount = mBuffer.getInt(position);
+                mOffsetsPosition = position + 4;
+                if (mRecordCount < 0 || mOffsetsPosition + mRecordCount * 4L > mBuffer.limit()) {
+                    throw new IOException("Truncated catalog");
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Truncated catalog", e);
+            }
+        }
+
+        public int size() {
+            return mRecordCount;
+        }
+
+        public UpdateInfo get(int index) throws IOException {
+            UpdateInfo.Builder builder = new UpdateInfo.Builder();
+            ByteBuffer record = record(index);
+            try {
+                for (int i = 0; i < mTags.length; i++) {
+                    if (mTypes[i] == TYPE_LONG) {
+                        long value = record.getLong();
+                        switch (mTags[i]) {
+                            case FIELD_DIFF_SIZE:
+                                builder.setDiffSize(value);
+                                break;
+                            case FIELD_FILE_SIZE:
+                                builder.setFileSize(value);
+                                break;
+                            case FIELD_TIMESTAMP:
+                                builder.setTimestamp(value);
+                                break;
+                            case FIELD_ROLLOUT:
+                                builder.setRollout((int) value);
+                                break;
+                        }
+                    } else {
+                        String value = getString(record);
+                        switch (mTags[i]) {
+                            case FIELD_NAME:
+                                builder.setName(value);
+                                break;
+                            case FIELD_MD5:
+                                builder.setMD5Sum(value);
+                                break;
+                            case FIELD_DOWNLOAD_URL:
+                                builder.setDownloadUrl(value);
+                                break;
+                            case FIELD_CHANGELOG_URL:
+                                builder.setChangelogUrl(value);
+                                break;
+                            case FIELD_BLOCK_MANIFEST_URL:
+                                builder.setBlockManifestUrl(value);
+                                break;
+                        }
+                    }
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Corrupt record " + index, e);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Reads the name of an update without decoding the rest of its record.
+         */
+        public String getName(int index) throws IOException {
+            ByteBuffer record = record(index);
+            try {
+                for (int i = 0; i < mTags.length; i++) {
+                    if (mTags[i] == FIELD_NAME) {
+                        return getString(record);
+                    } else if (mTypes[i] == TYPE_LONG) {
+                        record.position(record.position() + 8);
+                    } else {
+                        int length = record.getInt();
+                        record.position(record.position() + Math.max(length, 0));
+                    }
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Corrupt record " + index, e);
+            }
+            return null;
+        }
+
+        private ByteBuffer record(int index) throws IOException {
+            if (index < 0 || index >= mRecordCount) {
+                throw new IndexOutOfBoundsException("No record " + index);
+            }
+            int offset = mBuffer.getInt(mOffsetsPosition + index * 4);
+            if (offset < mOffsetsPosition || offset > mBuffer.limit()) {
+                throw new IOException("Corrupt record offset " + offset);
+            }
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(offset);
+            return record;
+        }
+
+        private static String getString(ByteBuffer record) {
+            int length = record.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > record.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] bytes = new byte[length];
+            record.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
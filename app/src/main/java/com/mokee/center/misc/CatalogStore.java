@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.misc;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the cached update list on disk. Use it through
+ * {@link com.mokee.center.controller.UpdateCatalog}, which holds the list in memory.
+ * <p>
+ * Writes happen on a single thread: every save bumps the generation, and a save that
+ * is superseded before its turn is never written. A list is written to a temporary
+ * file, synced and renamed over the old one, so the file always holds a complete list.
+ */
+public class CatalogStore {
+
+    private static final String TAG = "CatalogStore";
+
+    private static CatalogStore sInstance;
+
+    private final File mFile;
+    private final File mTempFile;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    private long mGeneration;
+    private Pending mPending;
+
+    private static class Pending {
+        private final long mGeneration;
+        private final List<UpdateInfo> mUpdates;
+        private final Runnable mOnWritten;
+
+        Pending(long generation, List<UpdateInfo> updates, Runnable onWritten) {
+            mGeneration = generation;
+            mUpdates = updates;
+            mOnWritten = onWritten;
+        }
+    }
+
+    private CatalogStore(Context context) {
+        mFile = FileUtil.getCachedUpdateList(context);
+        mTempFile = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+    }
+
+    public static synchronized CatalogStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CatalogStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return whether there is a list on disk, which may be about to be replaced
+     */
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * @return the list on disk, empty if there is none
+     */
+    public LinkedList<UpdateInfo> load() {
+        if (!mFile.exists()) {
+            return new LinkedList<>();
+        }
+        boolean legacy = !CatalogFile.isCatalog(mFile);
+        LinkedList<UpdateInfo> updates = State.loadState(mFile);
+        if (legacy && !updates.isEmpty()) {
+            // Stored by an older version, replace it like any other list
+            Log.d(TAG, "Migrating " + mFile.getName() + " to the catalog format");
+            save(new ArrayList<>(updates), null);
+        }
+        return updates;
+    }
+
+    /**
+     * @param updates   written as it is later on, so it must not change anymore
+     * @param onWritten run on the writer thread once the list is on disk, unless a later
+     *                  save or clear replaced it first
+     * @return the generation of the saved list
+     */
+    public synchronized long save(List<UpdateInfo> updates, Runnable onWritten) {
+        return schedule(updates, onWritten);
+    }
+
+    /**
+     * @return the generation of the removal
+     */
+    public synchronized long clear() {
+        return schedule(null, null);
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    private long schedule(List<UpdateInfo> updates, Runnable onWritten) {
+        boolean idle = mPending == null;
+        mPending = new Pending(++mGeneration, updates, onWritten);
+        if (idle) {
+            mWriter.execute(this::writePending);
+        }
+        return mGeneration;
+    }
+
+    private void writePending() {
+        Pending pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = null;
+        }
+        try {
+            if (pending.mUpdates == null) {
+                if (mFile.exists() && !mFile.delete()) {
+                    throw new IOException("Could not delete " + mFile);
+                }
+            } else {
+                CatalogFile.write(pending.mUpdates, mTempFile);
+                if (!mTempFile.renameTo(mFile)) {
+                    throw new IOException("Could not rename " + mTempFile + " to " + mFile);
+                }
+            }
+            Log.d(TAG, "Stored generation " + pending.mGeneration);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store generation " + pending.mGeneration, e);
+            mTempFile.delete();
+            return;
+        }
+        if (pending.mOnWritten != null) {
+            pending.mOnWritten.run();
+        }
+    }
+}
@@ -49,6 +49,7 @@ public class Constants extends ConstantsBase {
 
     // Donation
     public static final String DONATION_PREF = "DonationPrefs";
+    public static final String UPDATE_CHECK_STATS_PREF = "UpdateCheckStats";
     public static final int DONATION_MAX = 1000;
     public static final int DONATION_MIN = 10;
     public static final int DONATION_RESULT_OK = Activity.RESULT_OK;
@@ -66,8 +67,11 @@ public class Constants extends ConstantsBase {
     // Prefs
     public static final String PREF_DONATION_RECORD = "donation_record";
     public static final String PREF_LAST_UPDATE_CHECK = "last_update_check";
+    public static final String PREF_UPDATE_CHECK_FAILURES = "update_check_failures";
+    public static final String PREF_PUSHED_BUILD = "pushed_build";
     public static final String PREF_AUTO_DELETE_UPDATES = "auto_delete_updates";
     public static final String PREF_AB_PERF_MODE = "ab_perf_mode";
+    public static final String PREF_AB_STREAMING_INSTALL = "ab_streaming_install";
     public static final String PREF_UPDATE_TYPE = "update_type";
     public static final String PREF_VERIFIED_UPDATES = "verified_updates";
     public static final String PREF_INCREMENTAL_UPDATES = "incremental_updates";
@@ -76,6 +80,12 @@ public class Constants extends ConstantsBase {
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String PREF_OUT_OF_DATE = "out_of_date";
+    public static final String PREF_DOWNLOAD_CONNECTIONS = "download_connections";
+    public static final String PREF_CONCURRENT_DOWNLOADS = "concurrent_downloads";
+    public static final String PREF_PREFETCH_UPDATES = "prefetch_updates";
+    public static final String PREF_UPDATE_LIST_KEY = "update_list_key";
+    public static final String PREF_UPDATE_LIST_ETAG = "update_list_etag";
+    public static final String PREF_UPDATE_LIST_LAST_MODIFIED = "update_list_last_modified";
 
     // HTTP Params
     public static final String PARAM_UNIQUE_IDS = "user_ids";
@@ -90,4 +100,5 @@ public class Constants extends ConstantsBase {
 
     // Push Extras
     public static final String KEY_PUSH_EXTRA_URL = "url";
+    public static final String PUSH_TYPE_NEW_BUILD = "new_build";
 }
@@ -19,6 +19,8 @@ package com.mokee.center.misc;
 
 import android.util.Log;
 
+import com.mokee.center.model.PackageMetadata;
+import com.mokee.center.model.QueuedDownload;
 import com.mokee.center.model.UpdateInfo;
 
 import java.io.File;
@@ -28,6 +30,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.LinkedList;
 
 public class State {
@@ -35,61 +38,107 @@ public class State {
     private static final String TAG = "State";
 
     public static void saveState(LinkedList<UpdateInfo> availableUpdates, File file) {
-        ObjectOutputStream oos = null;
-        FileOutputStream fos = null;
         try {
-            fos = new FileOutputStream(file);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(availableUpdates);
-            oos.flush();
+            CatalogFile.write(availableUpdates, file);
         } catch (IOException e) {
             Log.e(TAG, "Exception on saving instance state", e);
-        } finally {
-            try {
-                if (oos != null) {
-                    oos.close();
-                }
-                if (fos != null) {
-                    fos.close();
-                }
-            } catch (IOException e) {
-                // ignored, can't do anything anyway
-            }
         }
     }
 
     public static LinkedList<UpdateInfo> loadState(File file) {
-        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
-        ObjectInputStream ois = null;
-        FileInputStream fis = null;
+        if (!file.exists()) {
+            Log.i(TAG, "No state info stored");
+            return new LinkedList<>();
+        }
+        if (!CatalogFile.isCatalog(file)) {
+            return loadLegacyState(file);
+        }
         try {
-            fis = new FileInputStream(file);
-            ois = new ObjectInputStream(fis);
+            return CatalogFile.read(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading state", e);
+            return new LinkedList<>();
+        }
+    }
 
+    /**
+     * Reads a list stored with Java serialization by older versions. The file is left
+     * as it is, {@link CatalogStore} stores the list again as a catalog.
+     */
+    private static LinkedList<UpdateInfo> loadLegacyState(File file) {
+        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
             Object o = ois.readObject();
             if (o != null && o instanceof LinkedList<?>) {
                 availableUpdates = (LinkedList<UpdateInfo>) o;
             }
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "Unable to load stored class", e);
+            return availableUpdates;
         } catch (IllegalArgumentException e) {
             Log.d(TAG, "Unexpected state file format", e);
-        } catch (FileNotFoundException e) {
-            Log.i(TAG, "No state info stored");
+            return availableUpdates;
         } catch (IOException e) {
             Log.e(TAG, "Exception on loading state", e);
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                }
-                if (fis != null) {
-                    fis.close();
-                }
-            } catch (IOException e) {
-                // ignored, can't do anything anyway
+            return availableUpdates;
+        }
+        LinkedList<UpdateInfo> migratedUpdates = new LinkedList<>();
+        for (UpdateInfo update : availableUpdates) {
+            // Progress is attached again by UpdaterController, never keep it around.
+            // Staged rollouts did not exist back then, so the builds went to everybody.
+            migratedUpdates.add(new UpdateInfo.Builder(update)
+                    .setRollout(UpdateInfo.FULL_ROLLOUT).build());
+        }
+        return migratedUpdates;
+    }
+
+    public static void saveDownloadQueue(ArrayList<QueuedDownload> queue, File file) {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+            oos.writeObject(queue);
+            oos.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving download queue", e);
+        }
+    }
+
+    public static ArrayList<QueuedDownload> loadDownloadQueue(File file) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            Object o = ois.readObject();
+            if (o instanceof ArrayList<?>) {
+                return (ArrayList<QueuedDownload>) o;
+            }
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "Unable to load stored class", e);
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No download queue stored");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading download queue", e);
+        }
+        return new ArrayList<>();
+    }
+
+    public static void savePackageMetadata(PackageMetadata metadata, File file) {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+            oos.writeObject(metadata);
+            oos.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on saving package metadata", e);
+        }
+    }
+
+    public static PackageMetadata loadPackageMetadata(File file) {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            Object o = ois.readObject();
+            if (o instanceof PackageMetadata) {
+                return (PackageMetadata) o;
             }
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "Unable to load stored class", e);
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No package metadata stored");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading package metadata", e);
         }
-        return availableUpdates;
+        return null;
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes of the fixed-size blocks of an update package, as served next to the build:
+ * <pre>
+ * {"size": 1234, "block_size": 4194304, "algorithm": "SHA-256", "blocks": ["hex", ...]}
+ * </pre>
+ */
+public class BlockManifest {
+
+    private static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    private final long mSize;
+    private final int mBlockSize;
+    private final String mAlgorithm;
+    private final String[] mHashes;
+
+    private BlockManifest(long size, int blockSize, String algorithm, String[] hashes) {
+        mSize = size;
+        mBlockSize = blockSize;
+        mAlgorithm = algorithm;
+        mHashes = hashes;
+    }
+
+    public static BlockManifest fromJson(String json) throws JSONException {
+        JSONObject object = new JSONObject(json);
+        long size = object.getLong("size");
+        int blockSize = object.getInt("block_size");
+        String algorithm = object.optString("algorithm", DEFAULT_ALGORITHM);
+        JSONArray blocks = object.getJSONArray("blocks");
+        if (size < 0 || blockSize <= 0 || blocks.length() != (size + blockSize - 1) / blockSize) {
+            throw new JSONException("Block count does not match the package size");
+        }
+        String[] hashes = new String[blocks.length()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = blocks.getString(i);
+        }
+        return new BlockManifest(size, blockSize, algorithm, hashes);
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mHashes.length;
+    }
+
+    public long getBlockStart(int index) {
+        return (long) index * mBlockSize;
+    }
+
+    public long getBlockEnd(int index) {
+        return Math.min(getBlockStart(index) + mBlockSize, mSize);
+    }
+
+    public MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(mAlgorithm);
+    }
+
+    public boolean matches(int index, byte[] digest) {
+        String expected = mHashes[index];
+        if (expected.length() != digest.length * 2) {
+            return false;
+        }
+        for (int i = 0; i < digest.length; i++) {
+            int value = Character.digit(expected.charAt(i * 2), 16) << 4
+                    | Character.digit(expected.charAt(i * 2 + 1), 16);
+            if (value != (digest[i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
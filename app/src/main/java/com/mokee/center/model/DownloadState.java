@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import com.mokee.center.util.ResumableMd5;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent state of a segmented download. It is stored in {@code Progress.extra2}
+ * so that OkDownload saves it together with the rest of the task.
+ */
+public class DownloadState implements Serializable {
+
+    private static final long serialVersionUID = 2617740946210377841L;
+
+    private final long mTotalSize;
+    private final long mSegmentSize;
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    private ArrayList<Segment> mRepairs = new ArrayList<>();
+    private ResumableMd5 mDigest = new ResumableMd5();
+
+    private transient boolean mChecked;
+
+    public DownloadState(long totalSize, long segmentSize) {
+        mTotalSize = totalSize;
+        mSegmentSize = segmentSize;
+        for (long start = 0; start < totalSize; start += segmentSize) {
+            mSegments.add(new Segment(start, Math.min(start + segmentSize, totalSize)));
+        }
+    }
+
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * Ranges that failed verification against the block manifest after the download
+     * had finished, and are being downloaded again.
+     */
+    public List<Segment> getRepairs() {
+        if (mRepairs == null) {
+            mRepairs = new ArrayList<>();
+        }
+        return mRepairs;
+    }
+
+    public boolean hasRepairs() {
+        return !getRepairs().isEmpty();
+    }
+
+    public void addRepair(long start, long end) {
+        getRepairs().add(new Segment(start, end));
+    }
+
+    /**
+     * Moves a segment back so its data from the given position is downloaded again.
+     * The digest restarts from scratch if it already covered the discarded bytes.
+     */
+    public void rewind(Segment segment, long position) {
+        segment.setPosition(position);
+        if (mDigest.getCount() > position) {
+            mDigest = new ResumableMd5();
+        }
+    }
+
+    /**
+     * Whether the written data was checked since the state was loaded from disk.
+     */
+    public boolean isChecked() {
+        return mChecked;
+    }
+
+    public void setChecked(boolean checked) {
+        mChecked = checked;
+    }
+
+    public Segment getSegmentAt(long offset) {
+        return mSegments.get((int) (offset / mSegmentSize));
+    }
+
+    /**
+     * The digest covers the file from its start up to {@link ResumableMd5#getCount()}.
+     * It is the last checkpoint and must not be hashed on, see {@link #setDigest}.
+     */
+    public ResumableMd5 getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * Replaces the checkpoint with a copy of a digest that is hashed elsewhere, so the
+     * state can be saved while hashing goes on.
+     */
+    public void setDigest(ResumableMd5 digest) {
+        mDigest = digest;
+    }
+
+    /**
+     * @return the MD5 of the whole file, or null if not everything has been hashed yet
+     * or if repaired ranges have been written after hashing
+     */
+    public String getMd5() {
+        return mDigest.getCount() == mTotalSize && !hasRepairs() ? mDigest.hexDigest() : null;
+    }
+
+    public long getDownloadedSize() {
+        long downloaded = 0;
+        for (Segment segment : mSegments) {
+            downloaded += segment.getPosition() - segment.getStart();
+        }
+        for (Segment repair : getRepairs()) {
+            downloaded -= repair.getEnd() - repair.getPosition();
+        }
+        return downloaded;
+    }
+
+    /**
+     * @return the smallest file length that holds every byte written so far
+     */
+    public long getWrittenLength() {
+        long length = 0;
+        for (Segment segment : mSegments) {
+            if (segment.getPosition() > segment.getStart()) {
+                length = Math.max(length, segment.getPosition());
+            }
+        }
+        return length;
+    }
+
+    public boolean isComplete() {
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+        for (Segment repair : getRepairs()) {
+            if (!repair.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Segment implements Serializable {
+
+        private static final long serialVersionUID = -4394857102784409311L;
+
+        private final long mStart;
+        private final long mEnd;
+        private long mPosition;
+
+        Segment(long start, long end) {
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+        }
+
+        public long getStart() {
+            return mStart;
+        }
+
+        /**
+         * @return the offset right after the last byte of this segment
+         */
+        public long getEnd() {
+            return mEnd;
+        }
+
+        public long getPosition() {
+            return mPosition;
+        }
+
+        public void setPosition(long position) {
+            mPosition = position;
+        }
+
+        public boolean isComplete() {
+            return mPosition >= mEnd;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * What installing a downloaded package needs to know about it, read from the zip
+ * once. It belongs to one exact file: path, size and modification time.
+ */
+public class PackageMetadata implements Serializable {
+
+    private static final long serialVersionUID = 3824950371640277152L;
+
+    private String mPath;
+    private long mLength;
+    private long mLastModified;
+    private boolean mABUpdate;
+    private long mPayloadOffset;
+    private long mPayloadSize;
+    private String[] mPayloadProperties;
+    private boolean mVerified;
+
+    /**
+     * @return whether this describes the given file as it is now
+     */
+    public boolean matches(File file) {
+        return file.getAbsolutePath().equals(mPath) && file.length() == mLength
+                && file.lastModified() == mLastModified;
+    }
+
+    public boolean isABUpdate() {
+        return mABUpdate;
+    }
+
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    /**
+     * @return the lines of payload_properties.txt, as passed to update_engine
+     */
+    public String[] getPayloadProperties() {
+        return mPayloadProperties;
+    }
+
+    /**
+     * @return whether the package passed the checksum and signature verification
+     */
+    public boolean isVerified() {
+        return mVerified;
+    }
+
+    public static class Builder {
+        private File mFile;
+        private boolean mABUpdate;
+        private long mPayloadOffset;
+        private long mPayloadSize;
+        private String[] mPayloadProperties;
+        private boolean mVerified;
+
+        public Builder setFile(File file) {
+            mFile = file;
+            return this;
+        }
+
+        public Builder setABUpdate(boolean abUpdate) {
+            mABUpdate = abUpdate;
+            return this;
+        }
+
+        public Builder setPayload(long offset, long size) {
+            mPayloadOffset = offset;
+            mPayloadSize = size;
+            return this;
+        }
+
+        public Builder setPayloadProperties(String[] payloadProperties) {
+            mPayloadProperties = payloadProperties;
+            return this;
+        }
+
+        public Builder setVerified(boolean verified) {
+            mVerified = verified;
+            return this;
+        }
+
+        public PackageMetadata build() {
+            PackageMetadata metadata = new PackageMetadata();
+            metadata.mPath = mFile.getAbsolutePath();
+            metadata.mLength = mFile.length();
+            metadata.mLastModified = mFile.lastModified();
+            metadata.mABUpdate = mABUpdate;
+            metadata.mPayloadOffset = mPayloadOffset;
+            metadata.mPayloadSize = mPayloadSize;
+            metadata.mPayloadProperties = mPayloadProperties;
+            metadata.mVerified = mVerified;
+            return metadata;
+        }
+    }
+}
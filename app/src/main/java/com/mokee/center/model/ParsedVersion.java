@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import com.mokee.center.util.BuildInfoUtil;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A version name taken apart once, so it can be compared without parsing it again.
+ * <p>
+ * Full builds are named like MK100.0-RELEASE-202007010000-device, incremental updates
+ * like OTA-MK100.0-RELEASE-202006010000-202007010000-device. Parsed versions are kept
+ * for the lifetime of the process: there are only ever a few of them.
+ * <p>
+ * Plain Java on purpose, so versions and everything ordered by them can be unit tested.
+ */
+public final class ParsedVersion implements Comparable<ParsedVersion> {
+
+    private static final ConcurrentHashMap<String, ParsedVersion> sVersions = new ConcurrentHashMap<>();
+
+    private final String mName;
+    private final boolean mIncremental;
+    private final String mReleaseVersion;
+    private final float mReleaseCode;
+    private final long mBuildDate;
+    private final long mSourceBuildDate;
+    private final long mTimestamp;
+
+    private ParsedVersion(String name) {
+        String[] info = name.split("-");
+        mName = name;
+        mIncremental = name.toLowerCase(Locale.ENGLISH).startsWith("ota");
+        mReleaseVersion = mIncremental ? info[1] : info[0];
+        mReleaseCode = mReleaseVersion.toLowerCase(Locale.ENGLISH).startsWith("mk")
+                ? Float.valueOf(mReleaseVersion.substring(2)) : 0;
+        mBuildDate = parseDate(mIncremental ? info[4] : info[2]);
+        mSourceBuildDate = mIncremental ? parseDate(info[3]) : 0;
+        mTimestamp = BuildInfoUtil.getTimeStamp(String.valueOf(mBuildDate));
+    }
+
+    /**
+     * @return the parsed version, parsed only the first time a name is seen
+     */
+    public static ParsedVersion of(String name) {
+        ParsedVersion version = sVersions.get(name);
+        if (version == null) {
+            version = parse(name);
+            ParsedVersion known = sVersions.putIfAbsent(name, version);
+            if (known != null) {
+                version = known;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Parses a name without looking it up or keeping the result, prefer {@link #of(String)}.
+     */
+    public static ParsedVersion parse(String name) {
+        return new ParsedVersion(name);
+    }
+
+    private static long parseDate(String date) {
+        for (int i = 0; i < date.length(); i++) {
+            if (!Character.isDigit(date.charAt(i))) {
+                return 0;
+            }
+        }
+        return date.isEmpty() ? 0 : Long.valueOf(date);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    public String getReleaseVersion() {
+        return mReleaseVersion;
+    }
+
+    public float getReleaseCode() {
+        return mReleaseCode;
+    }
+
+    public long getBuildDate() {
+        return mBuildDate;
+    }
+
+    /**
+     * @return the build date an incremental update applies on top of, 0 for full builds
+     */
+    public long getSourceBuildDate() {
+        return mSourceBuildDate;
+    }
+
+    /**
+     * @return the build date in milliseconds
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Orders by release code, then the newest build first within the same release. A full
+     * build and the incremental updates to it are told apart by name, so versions that
+     * are not the same never compare equal.
+     */
+    @Override
+    public int compareTo(ParsedVersion other) {
+        if (mReleaseCode != other.mReleaseCode) {
+            return Float.compare(mReleaseCode, other.mReleaseCode);
+        } else if (mBuildDate != other.mBuildDate) {
+            return Long.compare(other.mBuildDate, mBuildDate);
+        } else {
+            return mName.compareTo(other.mName);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
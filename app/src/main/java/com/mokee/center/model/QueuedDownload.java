@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import java.io.Serializable;
+
+/**
+ * An entry of the download queue: which update to download, how urgently, and under
+ * which conditions it is allowed to run.
+ */
+public class QueuedDownload implements Serializable {
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    public static final int CONSTRAINT_UNMETERED = 1;
+    public static final int CONSTRAINT_CHARGING = 1 << 1;
+    // Screen off, the part of device idle that apps can observe
+    public static final int CONSTRAINT_IDLE = 1 << 2;
+
+    public static final int NO_WINDOW = -1;
+
+    private static final long serialVersionUID = -6310592446283375016L;
+
+    private String mDownloadId;
+    private int mPriority = PRIORITY_NORMAL;
+    private int mConstraints;
+    private int mWindowStart = NO_WINDOW;
+    private int mWindowEnd = NO_WINDOW;
+    private long mSequence;
+    private boolean mPaused;
+
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getConstraints() {
+        return mConstraints;
+    }
+
+    public boolean hasConstraint(int constraint) {
+        return (mConstraints & constraint) != 0;
+    }
+
+    /**
+     * @return the minute of the day the download may start at, or {@link #NO_WINDOW}
+     */
+    public int getWindowStart() {
+        return mWindowStart;
+    }
+
+    /**
+     * @return the minute of the day the download must stop at, or {@link #NO_WINDOW}
+     */
+    public int getWindowEnd() {
+        return mWindowEnd;
+    }
+
+    public boolean hasWindow() {
+        return mWindowStart != NO_WINDOW && mWindowEnd != NO_WINDOW;
+    }
+
+    /**
+     * Whether the given minute of the day is inside the window. A window may wrap
+     * around midnight, e.g. from 23:00 to 07:00.
+     */
+    public boolean isInWindow(int minuteOfDay) {
+        if (!hasWindow()) {
+            return true;
+        }
+        if (mWindowStart <= mWindowEnd) {
+            return minuteOfDay >= mWindowStart && minuteOfDay < mWindowEnd;
+        }
+        return minuteOfDay >= mWindowStart || minuteOfDay < mWindowEnd;
+    }
+
+    /**
+     * @return the order the entry was queued in, used to break priority ties
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * Paused entries keep their place and constraints but are never started
+     * until they are resumed.
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    public static class Builder {
+        private String mDownloadId;
+        private int mPriority = PRIORITY_NORMAL;
+        private int mConstraints;
+        private int mWindowStart = NO_WINDOW;
+        private int mWindowEnd = NO_WINDOW;
+
+        public Builder setDownloadId(String downloadId) {
+            mDownloadId = downloadId;
+            return this;
+        }
+
+        public Builder setPriority(int priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        public Builder setConstraints(int constraints) {
+            mConstraints = constraints;
+            return this;
+        }
+
+        public Builder setWindow(int startMinute, int endMinute) {
+            mWindowStart = startMinute;
+            mWindowEnd = endMinute;
+            return this;
+        }
+
+        public QueuedDownload build() {
+            QueuedDownload download = new QueuedDownload();
+            download.mDownloadId = mDownloadId;
+            download.mPriority = mPriority;
+            download.mConstraints = mConstraints;
+            download.mWindowStart = mWindowStart;
+            download.mWindowEnd = mWindowEnd;
+            return download;
+        }
+    }
+}
@@ -17,10 +17,12 @@
 
 package com.mokee.center.model;
 
+import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.lzy.okgo.model.Progress;
+import com.mokee.center.util.BuildInfoUtil;
 
 import java.io.File;
 import java.io.Serializable;
@@ -40,6 +42,8 @@ public class UpdateInfo implements Parcelable, Serializable {
         }
     };
 
+    public static final int FULL_ROLLOUT = 100;
+
     private static final long serialVersionUID = 5499890003569313403L;
     private String mName;
     private String mMd5;
@@ -48,11 +52,14 @@ public class UpdateInfo implements Parcelable, Serializable {
     private long mTimestamp;
     private String mDownloadUrl;
     private String mChangelogUrl;
+    private String mBlockManifestUrl;
+    private int mRollout;
     private Progress mProgress;
-    private String mDisplayVersion;
     private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
     private boolean mIsFinalizing;
     private float mInstallProgress;
+    private float mVerifyProgress;
+    private transient ParsedVersion mVersion;
 
     public UpdateInfo() {
     }
@@ -65,8 +72,18 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mName;
     }
 
-    public String getDisplayVersion() {
-        return mDisplayVersion;
+    public ParsedVersion getVersion() {
+        if (mVersion == null) {
+            mVersion = ParsedVersion.of(mName);
+        }
+        return mVersion;
+    }
+
+    /**
+     * @return the release and build date, formatted for the current locale
+     */
+    public String getDisplayVersion(Context context) {
+        return BuildInfoUtil.getDisplayVersion(context, getVersion());
     }
 
     public String getMd5() {
@@ -93,6 +110,17 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mChangelogUrl;
     }
 
+    public String getBlockManifestUrl() {
+        return mBlockManifestUrl;
+    }
+
+    /**
+     * @return the percentage of devices the build is offered to in the background
+     */
+    public int getRollout() {
+        return mRollout;
+    }
+
     public Progress getProgress() {
         return mProgress;
     }
@@ -129,6 +157,14 @@ public class UpdateInfo implements Parcelable, Serializable {
         this.mInstallProgress = progress;
     }
 
+    public float getVerifyProgress() {
+        return mVerifyProgress;
+    }
+
+    public void setVerifyProgress(float progress) {
+        this.mVerifyProgress = progress;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -137,43 +173,59 @@ public class UpdateInfo implements Parcelable, Serializable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(mName);
-        dest.writeString(mDisplayVersion);
         dest.writeString(mMd5);
         dest.writeLong(mDiffSize);
         dest.writeLong(mFileSize);
         dest.writeLong(mTimestamp);
         dest.writeString(mDownloadUrl);
         dest.writeString(mChangelogUrl);
+        dest.writeString(mBlockManifestUrl);
+        dest.writeInt(mRollout);
     }
 
     private void readFromParcel(Parcel in) {
         mName = in.readString();
-        mDisplayVersion = in.readString();
         mMd5 = in.readString();
         mDiffSize = in.readLong();
         mFileSize = in.readLong();
         mTimestamp = in.readLong();
         mDownloadUrl = in.readString();
         mChangelogUrl = in.readString();
+        mBlockManifestUrl = in.readString();
+        mRollout = in.readInt();
     }
 
     public static class Builder {
         private String mName;
-        private String mDisplayVersion;
         private String mMd5;
         private long mDiffSize;
         private long mFileSize;
         private long mTimestamp;
         private String mDownloadUrl;
         private String mChangelogUrl;
+        private String mBlockManifestUrl;
+        private int mRollout = FULL_ROLLOUT;
 
-        public Builder setName(String name) {
-            mName = name;
-            return this;
+        public Builder() {
+        }
+
+        /**
+         * Starts from the catalog fields of an update, without its download or install state.
+         */
+        public Builder(UpdateInfo updateInfo) {
+            mName = updateInfo.mName;
+            mMd5 = updateInfo.mMd5;
+            mDiffSize = updateInfo.mDiffSize;
+            mFileSize = updateInfo.mFileSize;
+            mTimestamp = updateInfo.mTimestamp;
+            mDownloadUrl = updateInfo.mDownloadUrl;
+            mChangelogUrl = updateInfo.mChangelogUrl;
+            mBlockManifestUrl = updateInfo.mBlockManifestUrl;
+            mRollout = updateInfo.mRollout;
         }
 
-        public Builder setDisplayVersion(String version) {
-            mDisplayVersion = version;
+        public Builder setName(String name) {
+            mName = name;
             return this;
         }
 
@@ -202,21 +254,32 @@ public class UpdateInfo implements Parcelable, Serializable {
             return this;
         }
 
+        public Builder setBlockManifestUrl(String blockManifestUrl) {
+            mBlockManifestUrl = blockManifestUrl;
+            return this;
+        }
+
         public Builder setDownloadUrl(String downloadUrl) {
             mDownloadUrl = downloadUrl;
             return this;
         }
 
+        public Builder setRollout(int rollout) {
+            mRollout = Math.max(0, Math.min(rollout, FULL_ROLLOUT));
+            return this;
+        }
+
         public UpdateInfo build() {
             UpdateInfo info = new UpdateInfo();
             info.mName = mName;
-            info.mDisplayVersion = mDisplayVersion;
             info.mMd5 = mMd5;
             info.mDiffSize = mDiffSize;
             info.mFileSize = mFileSize;
             info.mTimestamp = mTimestamp;
             info.mChangelogUrl = mChangelogUrl;
             info.mDownloadUrl = mDownloadUrl;
+            info.mBlockManifestUrl = mBlockManifestUrl;
+            info.mRollout = mRollout;
             return info;
         }
     }
@@ -38,9 +38,13 @@ import com.google.android.gms.ads.InterstitialAd;
 import com.google.android.material.snackbar.Snackbar;
 import com.mokee.center.MKCenterApplication;
 import com.mokee.center.R;
+import com.mokee.center.controller.CatalogDiff;
+import com.mokee.center.controller.UpdatePlanner;
 import com.mokee.center.controller.UpdaterController;
 import com.mokee.center.controller.UpdaterService;
+import com.mokee.center.dialog.DownloadOptionsDialogBuilder;
 import com.mokee.center.misc.Constants;
+import com.mokee.center.model.QueuedDownload;
 import com.mokee.center.model.UpdateInfo;
 import com.mokee.center.util.CommonUtil;
 
@@ -48,6 +52,7 @@ import java.io.IOException;
 import java.util.LinkedList;
 
 import androidx.appcompat.app.AlertDialog;
+import androidx.preference.Preference;
 import androidx.preference.PreferenceCategory;
 import androidx.preference.PreferenceViewHolder;
 
@@ -101,23 +106,37 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
         }
     }
 
+    /**
+     * Shows that the list is being fetched. Updates that are shown already stay, the new
+     * list is applied to them once it arrives.
+     */
     public void setPendingListPreferences() {
+        if (isShowingUpdates()) {
+            return;
+        }
         removeAll();
         PendingListPreference pendingListPreference = new PendingListPreference(getContext());
         addPreference(pendingListPreference);
     }
 
+    /**
+     * Replaces what {@link #setPendingListPreferences()} showed once the fetch is over,
+     * whether it brought a new list or not.
+     */
+    public void clearPendingListPreferences() {
+        if (!isShowingUpdates()) {
+            refreshPreferences();
+        }
+    }
+
     public void refreshPreferences() {
         removeAll();
         LinkedList<UpdateInfo> availableUpdates = mUpdaterController.getUpdates();
         if (availableUpdates != null && availableUpdates.size() > 0) {
+            addPlanPreference();
+            int order = 1;
             for (UpdateInfo updateInfo : availableUpdates) {
-                UpdatePreference updatePreference = new UpdatePreference(getContext());
-                updatePreference.setTitle(updateInfo.getDisplayVersion());
-                updatePreference.setKey(updateInfo.getName());
-                updatePreference.setOnActionListener(this);
-                updatePreference.setUpdaterController(mUpdaterController);
-                addPreference(updatePreference);
+                addUpdatePreference(updateInfo, order++);
             }
         } else {
             EmptyListPreference emptyListPreference = new EmptyListPreference(getContext());
@@ -125,6 +144,87 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
         }
     }
 
+    /**
+     * Applies the changes of the update list to the preferences already shown, falling
+     * back to a full refresh when the list was or became empty.
+     */
+    public void applyCatalogDiff(CatalogDiff diff) {
+        LinkedList<UpdateInfo> availableUpdates = mUpdaterController.getUpdates();
+        if (!isShowingUpdates() || availableUpdates.isEmpty()) {
+            refreshPreferences();
+            return;
+        }
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        for (String downloadId : diff.getRemoved()) {
+            Preference preference = findPreference(downloadId);
+            if (preference != null) {
+                removePreference(preference);
+            }
+        }
+        for (UpdateInfo updateInfo : diff.getChanged()) {
+            UpdatePreference preference = findPreference(updateInfo.getName());
+            if (preference != null) {
+                preference.setTitle(updateInfo.getDisplayVersion(getContext()));
+                preference.updateStatus();
+            }
+        }
+        int order = 1;
+        for (UpdateInfo updateInfo : availableUpdates) {
+            Preference preference = findPreference(updateInfo.getName());
+            if (preference == null) {
+                addUpdatePreference(updateInfo, order);
+            } else {
+                preference.setOrder(order);
+            }
+            order++;
+        }
+
+        // The plan depends on the whole list
+        for (int i = getPreferenceCount() - 1; i >= 0; i--) {
+            if (getPreference(i) instanceof UpdatePlanPreference) {
+                removePreference(getPreference(i));
+            }
+        }
+        addPlanPreference();
+    }
+
+    private boolean isShowingUpdates() {
+        for (int i = 0; i < getPreferenceCount(); i++) {
+            if (getPreference(i) instanceof UpdatePreference) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addPlanPreference() {
+        UpdatePlanner.Plan plan = mUpdaterController.getUpdatePlan();
+        // A single full package is already the first entry of the list
+        if (plan != null && (plan.getSteps().size() > 1 || plan.isIncremental())) {
+            UpdatePlanPreference updatePlanPreference = new UpdatePlanPreference(getContext());
+            updatePlanPreference.setPlan(plan);
+            updatePlanPreference.setOrder(0);
+            updatePlanPreference.setOnPreferenceClickListener(preference -> {
+                onCheckWarn(() -> onStartPlan(plan));
+                return true;
+            });
+            addPreference(updatePlanPreference);
+        }
+    }
+
+    private void addUpdatePreference(UpdateInfo updateInfo, int order) {
+        UpdatePreference updatePreference = new UpdatePreference(getContext());
+        updatePreference.setTitle(updateInfo.getDisplayVersion(getContext()));
+        updatePreference.setKey(updateInfo.getName());
+        updatePreference.setOrder(order);
+        updatePreference.setOnActionListener(this);
+        updatePreference.setUpdaterController(mUpdaterController);
+        addPreference(updatePreference);
+    }
+
     private void onStartAction(String downloadId, int action) {
         if (mDownloadInterstitialAd != null) {
             if (mDownloadInterstitialAd.isLoaded()) {
@@ -142,19 +242,34 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
         } else {
             mUpdaterController.resumeDownload(downloadId);
         }
+        if (mUpdaterController.isDownloadQueued(downloadId)) {
+            Snackbar.make(mItemView, R.string.download_queued, Snackbar.LENGTH_SHORT).show();
+        }
     }
 
-    private void onCheckWarn(String downloadId, int action) {
-        if (mUpdaterController.hasActiveDownloads()) {
-            Snackbar.make(mItemView, R.string.download_already_running, Snackbar.LENGTH_SHORT).show();
-        } else if (mUpdaterController.isInstallingUpdate()) {
+    private void onStartPlan(UpdatePlanner.Plan plan) {
+        mUpdaterController.enqueuePlan(plan);
+        if (mUpdaterController.isDownloadQueued(plan.getTarget().getName())) {
+            Snackbar.make(mItemView, R.string.download_queued, Snackbar.LENGTH_SHORT).show();
+        }
+    }
+
+    private void onQueueDownload(QueuedDownload entry) {
+        mUpdaterController.enqueueDownload(entry);
+        if (mUpdaterController.isDownloadQueued(entry.getDownloadId())) {
+            Snackbar.make(mItemView, R.string.download_queued, Snackbar.LENGTH_SHORT).show();
+        }
+    }
+
+    private void onCheckWarn(Runnable startAction) {
+        if (mUpdaterController.isInstallingUpdate()) {
             Snackbar.make(mItemView, R.string.install_already_running, Snackbar.LENGTH_SHORT).show();
         } else {
             SharedPreferences mMainPrefs = CommonUtil.getMainPrefs(getContext());
             boolean warn = mMainPrefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
 
             if (CommonUtil.isOnWifiOrEthernet(getContext()) || !warn) {
-                onStartAction(downloadId, action);
+                startAction.run();
                 return;
             }
 
@@ -173,7 +288,7 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
                                             .putBoolean(Constants.PREF_MOBILE_DATA_WARNING, false)
                                             .apply();
                                 }
-                                onStartAction(downloadId, action);
+                                startAction.run();
                             })
                     .setNegativeButton(android.R.string.cancel, null)
                     .show();
@@ -182,17 +297,22 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
 
     @Override
     public void onStartDownload(String downloadId) {
-        onCheckWarn(downloadId, UpdaterService.DOWNLOAD_START);
+        if (CommonUtil.isABDevice() && CommonUtil.getMainPrefs(getContext())
+                .getBoolean(Constants.PREF_AB_STREAMING_INSTALL, false)) {
+            onCheckWarn(() -> onConfirmInstall(downloadId, true, true));
+        } else {
+            onCheckWarn(() -> onStartAction(downloadId, UpdaterService.DOWNLOAD_START));
+        }
     }
 
     @Override
     public void onRestartDownload(String downloadId) {
-        onCheckWarn(downloadId, UpdaterService.DOWNLOAD_RESTART);
+        onCheckWarn(() -> onStartAction(downloadId, UpdaterService.DOWNLOAD_RESTART));
     }
 
     @Override
     public void onResumeDownload(String downloadId) {
-        onCheckWarn(downloadId, UpdaterService.DOWNLOAD_RESUME);
+        onCheckWarn(() -> onStartAction(downloadId, UpdaterService.DOWNLOAD_RESUME));
     }
 
     @Override
@@ -205,6 +325,23 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
         mUpdaterController.deleteDownload(downloadId);
     }
 
+    @Override
+    public void onDownloadOptions(String downloadId) {
+        new DownloadOptionsDialogBuilder(getContext(), downloadId,
+                mUpdaterController.getQueuedDownload(downloadId), entry -> {
+            if (entry.hasConstraint(QueuedDownload.CONSTRAINT_UNMETERED)) {
+                // Never runs on mobile data, no need to warn about it
+                if (mUpdaterController.isInstallingUpdate()) {
+                    Snackbar.make(mItemView, R.string.install_already_running, Snackbar.LENGTH_SHORT).show();
+                } else {
+                    onQueueDownload(entry);
+                }
+            } else {
+                onCheckWarn(() -> onQueueDownload(entry));
+            }
+        }).show();
+    }
+
     @Override
     public void onReboot() {
         PowerManager pm =
@@ -214,6 +351,20 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
 
     @Override
     public void onInstallUpdate(String downloadId) {
+        boolean abUpdate = false;
+        try {
+            abUpdate = mUpdaterController.getPackageMetadata(downloadId).isABUpdate();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not determine the type of the update");
+        }
+        onConfirmInstall(downloadId, abUpdate, false);
+    }
+
+    /**
+     * Asks before installing. A/B updates may also be streamed, in which case nothing
+     * has been downloaded yet.
+     */
+    private void onConfirmInstall(String downloadId, boolean abUpdate, boolean streaming) {
         if (!isBatteryLevelOk()) {
             Resources resources = getContext().getResources();
             String message = resources.getString(R.string.dialog_battery_low_message_pct,
@@ -225,20 +376,19 @@ public class AvailableUpdatesPreferenceCategory extends PreferenceCategory imple
                     .setPositiveButton(android.R.string.ok, null).show();
         } else {
             UpdateInfo updateInfo = mUpdaterController.getUpdate(downloadId);
-            int resId = R.string.apply_update_dialog_message;
-            try {
-                if (CommonUtil.isABUpdate(updateInfo.getFile())) {
-                    resId = R.string.apply_update_dialog_message_ab;
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Could not determine the type of the update");
-            }
+            int resId = abUpdate ? R.string.apply_update_dialog_message_ab
+                    : R.string.apply_update_dialog_message;
             new AlertDialog.Builder(getContext())
                     .setTitle(R.string.apply_update_dialog_title)
                     .setMessage(getContext().getString(resId,
-                            updateInfo.getDisplayVersion(), getContext().getString(android.R.string.ok)))
-                    .setPositiveButton(android.R.string.ok,
-                            (dialog, which) -> CommonUtil.triggerUpdate(getContext(), downloadId))
+                            updateInfo.getDisplayVersion(getContext()), getContext().getString(android.R.string.ok)))
+                    .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                        if (streaming) {
+                            CommonUtil.triggerStreamingUpdate(getContext(), downloadId);
+                        } else {
+                            CommonUtil.triggerUpdate(getContext(), downloadId);
+                        }
+                    })
                     .setNegativeButton(android.R.string.cancel, null).show();
 
         }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.preference;
+
+import android.content.Context;
+import android.text.format.Formatter;
+
+import androidx.preference.Preference;
+
+import com.mokee.center.R;
+import com.mokee.center.controller.UpdatePlanner;
+
+public class UpdatePlanPreference extends Preference {
+
+    private UpdatePlanner.Plan mPlan;
+
+    public UpdatePlanPreference(Context context) {
+        super(context);
+        setIcon(R.drawable.ic_pref_incremental_updates);
+        setTitle(R.string.update_plan_title);
+    }
+
+    public UpdatePlanner.Plan getPlan() {
+        return mPlan;
+    }
+
+    public void setPlan(UpdatePlanner.Plan plan) {
+        mPlan = plan;
+        int steps = plan.getSteps().size();
+        setSummary(getContext().getResources().getQuantityString(R.plurals.update_plan_summary, steps,
+                plan.getTarget().getDisplayVersion(getContext()), steps,
+                Formatter.formatFileSize(getContext(), plan.getTotalSize())));
+    }
+
+}
@@ -110,12 +110,26 @@ public class UpdatePreference extends Preference implements View.OnClickListener
             if (updateInfo.getStatus() == UpdateStatus.INSTALLING) {
                 mDownloadProgress.setMax(100);
                 mDownloadProgress.setProgress(Math.round(updateInfo.getInstallProgress() * 100));
+            } else if (updateInfo.getStatus() == UpdateStatus.VERIFYING) {
+                mDownloadProgress.setMax(100);
+                mDownloadProgress.setProgress(Math.round(updateInfo.getVerifyProgress() * 100));
             } else {
                 mDownloadProgress.setMax((int) progress.totalSize);
                 mDownloadProgress.setProgress((int) progress.currentSize);
             }
             switch (progress.status) {
                 case Progress.WAITING:
+                    if (mUpdaterController.isDownloadQueued(getKey())) {
+                        mIconView.setImageResource(R.drawable.ic_action_pause);
+                        mIconView.setVisibility(View.VISIBLE);
+                        mDownloadProgress.setIndeterminate(false);
+                        mDownloadProgress.setVisibility(View.VISIBLE);
+                        mSummaryView.setText(R.string.download_queued_summary);
+                        mActionProgress.setVisibility(View.GONE);
+                        mUpdateButton.setEnabled(true);
+                        mFileSizeView.setText(NumberFormat.getPercentInstance().format(progress.fraction));
+                        break;
+                    }
                     mIconView.setVisibility(View.GONE);
                     mDownloadProgress.setIndeterminate(true);
                     mDownloadProgress.setVisibility(View.VISIBLE);
@@ -147,7 +161,16 @@ public class UpdatePreference extends Preference implements View.OnClickListener
                     mFileSizeView.setText(NumberFormat.getPercentInstance().format(progress.fraction));
                     break;
                 case Progress.FINISH:
-                    if (updateInfo.getStatus() == UpdateStatus.INSTALLING) {
+                    if (updateInfo.getStatus() == UpdateStatus.VERIFYING) {
+                        mIconView.setVisibility(View.GONE);
+                        mDownloadProgress.setIndeterminate(false);
+                        mDownloadProgress.setVisibility(View.VISIBLE);
+                        mSummaryView.setText(R.string.download_verifying_notification);
+                        mActionProgress.setVisibility(View.VISIBLE);
+                        mUpdateButton.setEnabled(false);
+                        mFileSizeView.setText(NumberFormat.getPercentInstance().format(updateInfo.getVerifyProgress()));
+                        break;
+                    } else if (updateInfo.getStatus() == UpdateStatus.INSTALLING) {
                         mIconView.setVisibility(View.GONE);
                         mDownloadProgress.setIndeterminate(false);
                         mDownloadProgress.setVisibility(View.VISIBLE);
@@ -223,6 +246,28 @@ public class UpdatePreference extends Preference implements View.OnClickListener
                     mUpdateButton.setEnabled(true);
                     mFileSizeView.setText(NumberFormat.getPercentInstance().format(progress.fraction));
             }
+        } else if (updateInfo.getStatus() == UpdateStatus.INSTALLING) {
+            // A streamed A/B update, nothing was downloaded
+            mIconView.setVisibility(View.GONE);
+            mDownloadProgress.setMax(100);
+            mDownloadProgress.setProgress(Math.round(updateInfo.getInstallProgress() * 100));
+            mDownloadProgress.setIndeterminate(false);
+            mDownloadProgress.setVisibility(View.VISIBLE);
+            mSummaryView.setText(updateInfo.getFinalizing() ?
+                    R.string.finalizing_package_notification : R.string.installing_update_notification);
+            mActionProgress.setVisibility(View.VISIBLE);
+            mUpdateButton.setEnabled(false);
+            mFileSizeView.setText(NumberFormat.getPercentInstance().format(updateInfo.getInstallProgress()));
+        } else if (updateInfo.getStatus() == UpdateStatus.INSTALLED
+                || mUpdaterController.isWaitingForReboot(getKey())) {
+            mIconView.setImageResource(R.drawable.ic_action_reboot);
+            mIconView.setVisibility(View.VISIBLE);
+            mDownloadProgress.setIndeterminate(false);
+            mDownloadProgress.setVisibility(View.GONE);
+            mSummaryView.setText(R.string.installing_update_finished_notification);
+            mActionProgress.setVisibility(View.GONE);
+            mUpdateButton.setEnabled(true);
+            mFileSizeView.setText(Formatter.formatFileSize(getContext(), updateInfo.getFileSize()));
         } else {
             mIconView.setImageResource(R.drawable.ic_action_download);
             mIconView.setVisibility(View.VISIBLE);
@@ -257,17 +302,26 @@ public class UpdatePreference extends Preference implements View.OnClickListener
 
     @Override
     public boolean onLongClick(View view) {
-        Progress progress = mUpdaterController.getUpdate(getKey()).getProgress();
-        if (progress == null) return false;
-        if (progress.status == Progress.FINISH || progress.status == Progress.PAUSE
-                || progress.status == Progress.ERROR) {
-            PopupMenu popupMenu = new PopupMenu(getContext(), mTitleView);
-            popupMenu.getMenuInflater().inflate(R.menu.menu_action_mode, popupMenu.getMenu());
-            popupMenu.setOnMenuItemClickListener(this);
-            popupMenu.show();
-            return true;
+        UpdateInfo updateInfo = mUpdaterController.getUpdate(getKey());
+        Progress progress = updateInfo.getProgress();
+        boolean queued = mUpdaterController.isDownloadQueued(getKey());
+        boolean deletable = progress != null && (progress.status == Progress.FINISH
+                || progress.status == Progress.PAUSE || progress.status == Progress.ERROR || queued);
+        boolean schedulable = updateInfo.getStatus() != UpdateStatus.INSTALLED
+                && updateInfo.getStatus() != UpdateStatus.INSTALLING
+                && !mUpdaterController.isWaitingForReboot(getKey())
+                && (progress == null || progress.status == Progress.PAUSE || progress.status == Progress.NONE
+                || (progress.status == Progress.ERROR && progress.fraction < 1) || queued);
+        if (!deletable && !schedulable) {
+            return false;
         }
-        return false;
+        PopupMenu popupMenu = new PopupMenu(getContext(), mTitleView);
+        popupMenu.getMenuInflater().inflate(R.menu.menu_action_mode, popupMenu.getMenu());
+        popupMenu.getMenu().findItem(R.id.menu_delete_action).setVisible(deletable);
+        popupMenu.getMenu().findItem(R.id.menu_download_options).setVisible(schedulable);
+        popupMenu.setOnMenuItemClickListener(this);
+        popupMenu.show();
+        return true;
     }
 
     @Override
@@ -276,6 +330,9 @@ public class UpdatePreference extends Preference implements View.OnClickListener
             case R.id.menu_delete_action:
                 mOnActionListener.onDeleteDownload(getKey());
                 return true;
+            case R.id.menu_download_options:
+                mOnActionListener.onDownloadOptions(getKey());
+                return true;
         }
         return false;
     }
@@ -285,13 +342,21 @@ public class UpdatePreference extends Preference implements View.OnClickListener
         if (mOnActionListener == null) return;
         UpdateInfo updateInfo = mUpdaterController.getUpdate(getKey());
         Progress progress = updateInfo.getProgress();
-        if (progress == null || progress.status == Progress.PAUSE
+        if (progress == null && (updateInfo.getStatus() == UpdateStatus.INSTALLED
+                || mUpdaterController.isWaitingForReboot(getKey()))) {
+            mOnActionListener.onReboot();
+        } else if (progress == null && updateInfo.getStatus() == UpdateStatus.INSTALLING) {
+            return;
+        } else if (progress == null || progress.status == Progress.PAUSE
                 || progress.status == Progress.ERROR || progress.status == Progress.NONE) {
             onStartAction(progress);
-        } else if (progress.status == Progress.LOADING) {
+        } else if (progress.status == Progress.LOADING
+                || mUpdaterController.isDownloadQueued(getKey())) {
             mOnActionListener.onPauseDownload(getKey());
         } else if (progress.status == Progress.FINISH) {
-            if (updateInfo.getStatus() == UpdateStatus.INSTALLED
+            if (updateInfo.getStatus() == UpdateStatus.VERIFYING) {
+                return;
+            } else if (updateInfo.getStatus() == UpdateStatus.INSTALLED
                 || mUpdaterController.isWaitingForReboot(getKey())) {
                 mOnActionListener.onReboot();
             } else {
@@ -315,6 +380,8 @@ public class UpdatePreference extends Preference implements View.OnClickListener
 
         void onDeleteDownload(String downloadId);
 
+        void onDownloadOptions(String downloadId);
+
         void onInstallUpdate(String downloadId);
 
         void onReboot();
@@ -24,16 +24,19 @@ import android.text.TextUtils;
 
 import com.mokee.center.activity.AgentWebActivity;
 import com.mokee.center.model.TagAliasBean;
+import com.mokee.center.receiver.UpdatesCheckReceiver;
 import com.mokee.center.util.Logger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import cn.jpush.android.api.CustomMessage;
 import cn.jpush.android.api.JPushMessage;
 import cn.jpush.android.api.NotificationMessage;
 import cn.jpush.android.service.JPushMessageReceiver;
 
 import static com.mokee.center.misc.Constants.KEY_PUSH_EXTRA_URL;
+import static com.mokee.center.misc.Constants.PUSH_TYPE_NEW_BUILD;
 import static com.mokee.center.push.TagAliasOperatorHelper.ACTION_GET;
 import static com.mokee.center.push.TagAliasOperatorHelper.sequence;
 
@@ -57,6 +60,15 @@ public class PushMessageReceiver extends JPushMessageReceiver {
         }
     }
 
+    @Override
+    public void onMessage(Context context, CustomMessage message) {
+        Logger.i(TAG, "[onMessage] " + message.contentType);
+        if (PUSH_TYPE_NEW_BUILD.equals(message.contentType)) {
+            // Silent, the user only hears of it once the check found the build
+            UpdatesCheckReceiver.schedulePushedUpdatesCheck(context, message.message);
+        }
+    }
+
     @Override
     public void onConnected(Context context, boolean isConnected) {
         Logger.i(TAG, "[onConnected] " + isConnected);
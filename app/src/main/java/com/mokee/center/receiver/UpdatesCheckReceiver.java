@@ -26,26 +26,29 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.SystemClock;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
 import androidx.core.app.NotificationCompat;
 import android.util.Log;
 
-import com.lzy.okgo.callback.StringCallback;
-import com.lzy.okgo.model.Response;
 import com.mokee.center.R;
 import com.mokee.center.activity.MainActivity;
-import com.mokee.center.misc.State;
+import com.mokee.center.controller.CatalogDiff;
+import com.mokee.center.controller.CheckScheduler;
+import com.mokee.center.controller.ClientBucket;
+import com.mokee.center.controller.PrefetchJobService;
+import com.mokee.center.controller.UpdateCatalog;
+import com.mokee.center.controller.UpdatesCheckJobService;
+import com.mokee.center.model.ParsedVersion;
 import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.util.BuildInfoUtil;
 import com.mokee.center.util.CommonUtil;
-import com.mokee.center.util.FileUtil;
-import com.mokee.center.util.OkGoUtil;
 
-import org.json.JSONException;
-
-import java.io.File;
-import java.util.Calendar;
+import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.UUID;
+import java.util.List;
+import java.util.Random;
 
 import com.mokee.center.misc.Constants;
 
@@ -55,6 +58,10 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
 
     private static final String DAILY_CHECK_ACTION = "daily_check_action";
     private static final String ONESHOT_CHECK_ACTION = "oneshot_check_action";
+    private static final String PUSH_CHECK_ACTION = "push_check_action";
+
+    // Devices told of a new build at once check within this time
+    private static final long PUSH_CHECK_SPREAD = 10 * DateUtils.MINUTE_IN_MILLIS;
 
     private static final String NEW_UPDATES_NOTIFICATION_CHANNEL = "new_updates_notification_channel";
 
@@ -64,54 +71,89 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            //cleanup downloads dir
+            // Everything else competes for the device right after boot. Loading the
+            // cached list to plan the next check also has it ready for the first time
+            // the app is opened.
+            final PendingResult result = goAsync();
+            new Thread(() -> {
+                try {
+                    scheduleRepeatingUpdatesCheck(context);
+                    UpdatesCheckJobService.scheduleAfterBoot(context);
+                } finally {
+                    result.finish();
+                }
+            }, "BootPrewarm").start();
+            return;
         }
 
         final SharedPreferences mMainPrefs = CommonUtil.getMainPrefs(context);
 
-        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            // Set a repeating alarm on boot to check for new updates once per day
+        if (DAILY_CHECK_ACTION.equals(intent.getAction())) {
+            // Plan the next check after every planned one
             scheduleRepeatingUpdatesCheck(context);
         }
 
-        if (!CommonUtil.isNetworkAvailable(context)) {
-            Log.d(TAG, "Network not available, scheduling new check");
-            scheduleUpdatesCheck(context);
+        if (PUSH_CHECK_ACTION.equals(intent.getAction())) {
+            String build = mMainPrefs.getString(Constants.PREF_PUSHED_BUILD, null);
+            mMainPrefs.edit().remove(Constants.PREF_PUSHED_BUILD).apply();
+            if (build == null || UpdateCatalog.getInstance(context).getSnapshot().getUpdate(build) != null) {
+                Log.d(TAG, "Pushed build " + build + " was found in the meantime");
+                return;
+            }
+        }
+
+        UpdatesCheckJobService.schedule(context);
+    }
+
+    /**
+     * Tells about the builds that are new to the device, once a check fetched a new list.
+     *
+     * @param previous the catalog before the new list was published
+     */
+    public static void onUpdatesFetched(Context context, UpdateCatalog.Snapshot previous,
+                                        List<UpdateInfo> updates) {
+        if (!previous.isStored()) {
+            // Nothing to compare with, the user has not even looked for updates yet
             return;
         }
+        // Builds of a staged rollout this device is not part of yet stay quiet
+        // until the rollout reaches it
+        ClientBucket bucket = CommonUtil.getClientBucket(context);
+        List<UpdateInfo> rolledOut = getRolledOut(updates, bucket);
+        CatalogDiff diff = CatalogDiff.compute(getRolledOut(previous.getUpdates(), bucket), rolledOut);
+        if (!diff.getAdded().isEmpty()) {
+            showNotification(context, diff.getAdded());
+            updateRepeatingUpdatesCheck(context);
+            if (CommonUtil.getMainPrefs(context).getBoolean(Constants.PREF_PREFETCH_UPDATES, false)) {
+                schedulePrefetch(context, rolledOut);
+            }
+        }
+    }
 
-        final File json = FileUtil.getCachedUpdateList(context);
-        final File jsonNew = new File(context.getCacheDir().getAbsolutePath() + UUID.randomUUID());
-        OkGoUtil.fetchAvailableUpdates(context, new StringCallback() {
-            @Override
-            public void onSuccess(Response<String> response) {
-                try {
-                    final LinkedList<UpdateInfo> updates = CommonUtil.parseJson(context, response.body(), TAG);
-                    State.saveState(updates, jsonNew);
-                    if (json.exists() && CommonUtil.checkForNewUpdates(json, jsonNew)) {
-                        showNotification(context, updates);
-                        updateRepeatingUpdatesCheck(context);
-                    }
-                    jsonNew.renameTo(json);
-                    // In case we set a one-shot check because of a previous failure
-                    cancelUpdatesCheck(context);
-                } catch (JSONException e) {
-                    Log.e(TAG, "Could not parse list, scheduling new check", e);
-                    scheduleUpdatesCheck(context);
-                }
-                mMainPrefs.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis()).apply();
+    private static List<UpdateInfo> getRolledOut(List<UpdateInfo> updates, ClientBucket bucket) {
+        List<UpdateInfo> rolledOut = new ArrayList<>(updates.size());
+        for (UpdateInfo update : updates) {
+            if (bucket.isInRollout(update.getRollout())) {
+                rolledOut.add(update);
             }
+        }
+        return rolledOut;
+    }
 
-            @Override
-            public void onError(Response<String> response) {
-                super.onError(response);
-                Log.e(TAG, "Could not download updates list, scheduling new check");
-                scheduleUpdatesCheck(context);
+    private static void schedulePrefetch(Context context, List<UpdateInfo> updates) {
+        UpdateInfo newest = null;
+        for (UpdateInfo update : updates) {
+            if (BuildInfoUtil.isCompatible(update.getVersion())
+                    && (newest == null || update.getTimestamp() > newest.getTimestamp())) {
+                newest = update;
             }
-        });
+        }
+        if (newest != null) {
+            PrefetchJobService.schedule(context, newest.getName());
+        }
     }
 
-    private static void showNotification(Context context, LinkedList<UpdateInfo> updates) {
+    private static void showNotification(Context context, List<UpdateInfo> updates) {
         NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         NotificationChannel notificationChannel = new NotificationChannel(
                 NEW_UPDATES_NOTIFICATION_CHANNEL,
@@ -137,7 +179,7 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         int added = 0, count = updates.size();
         for (UpdateInfo update : updates) {
             if (added < EXTRAS_NOTIF_UPDATE_COUNT) {
-                inbox.addLine(update.getDisplayVersion());
+                inbox.addLine(update.getDisplayVersion(context));
                 added ++;
             }
         }
@@ -168,15 +210,18 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
     }
 
     public static void scheduleRepeatingUpdatesCheck(Context context) {
-        long millisToNextRelease = millisToNextRelease(context);
+        List<UpdateInfo> updates = UpdateCatalog.getInstance(context).getSnapshot().getUpdates();
+        long[] buildTimestamps = new long[updates.size()];
+        int i = 0;
+        for (UpdateInfo update : updates) {
+            buildTimestamps[i++] = update.getTimestamp();
+        }
+        long nextCheck = getScheduler(context).getNextCheck(buildTimestamps);
         PendingIntent updateCheckIntent = getRepeatingUpdatesCheckIntent(context);
         AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
-                SystemClock.elapsedRealtime() + millisToNextRelease,
-                AlarmManager.INTERVAL_DAY, updateCheckIntent);
+        alarmMgr.set(AlarmManager.RTC, nextCheck, updateCheckIntent);
 
-        Date nextCheckDate = new Date(System.currentTimeMillis() + millisToNextRelease);
-        Log.d(TAG, "Setting daily updates check: " + nextCheckDate);
+        Log.d(TAG, "Setting planned updates check: " + new Date(nextCheck));
     }
 
     public static void cancelRepeatingUpdatesCheck(Context context) {
@@ -191,63 +236,69 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
     }
 
     public static void scheduleUpdatesCheck(Context context) {
-        long millisToNextCheck = AlarmManager.INTERVAL_HOUR * 2;
+        SharedPreferences preferences = CommonUtil.getMainPrefs(context);
+        int failures = preferences.getInt(Constants.PREF_UPDATE_CHECK_FAILURES, 0) + 1;
+        preferences.edit().putInt(Constants.PREF_UPDATE_CHECK_FAILURES, failures).apply();
+        long nextCheck = getScheduler(context).getRetry(failures);
         PendingIntent updateCheckIntent = getUpdatesCheckIntent(context);
         AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.set(AlarmManager.ELAPSED_REALTIME,
-                SystemClock.elapsedRealtime() + millisToNextCheck,
-                updateCheckIntent);
+        alarmMgr.set(AlarmManager.RTC, nextCheck, updateCheckIntent);
 
-        Date nextCheckDate = new Date(System.currentTimeMillis() + millisToNextCheck);
-        Log.d(TAG, "Setting one-shot updates check: " + nextCheckDate);
+        Log.d(TAG, "Setting one-shot updates check after " + failures + " failures: " + new Date(nextCheck));
     }
 
     public static void cancelUpdatesCheck(Context context) {
         AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         alarmMgr.cancel(getUpdatesCheckIntent(context));
+        CommonUtil.getMainPrefs(context).edit().remove(Constants.PREF_UPDATE_CHECK_FAILURES).apply();
         Log.d(TAG, "Cancelling pending one-shot check");
     }
 
-    private static long millisToNextRelease(Context context) {
-        final long extraMillis = 3 * AlarmManager.INTERVAL_HOUR;
-
-        LinkedList<UpdateInfo> updates = State.loadState(FileUtil.getCachedUpdateList(context));
-
-        if (updates == null || updates.size() == 0) {
-            return SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_DAY;
-        }
+    private static PendingIntent getPushedUpdatesCheckIntent(Context context) {
+        Intent intent = new Intent(context, UpdatesCheckReceiver.class);
+        intent.setAction(PUSH_CHECK_ACTION);
+        return PendingIntent.getBroadcast(context, 0, intent, 0);
+    }
 
-        long buildTimestamp = 0;
-        for (UpdateInfo update : updates) {
-            if (update.getTimestamp() > buildTimestamp) {
-                buildTimestamp = update.getTimestamp();
+    /**
+     * Checks for updates shortly after the server announced a new build. Builds that
+     * are not newer than the installed one, are already known or are already waiting
+     * for their check are ignored.
+     */
+    public static void schedulePushedUpdatesCheck(Context context, String build) {
+        try {
+            if (TextUtils.isEmpty(build) || !BuildInfoUtil.isCompatible(ParsedVersion.parse(build))) {
+                Log.d(TAG, "Ignoring pushed build " + build);
+                return;
             }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            Log.e(TAG, "Invalid pushed build " + build);
+            return;
+        }
+        if (UpdateCatalog.getInstance(context).getSnapshot().getUpdate(build) != null) {
+            Log.d(TAG, "Pushed build " + build + " is already known");
+            return;
         }
-        buildTimestamp *= 1000;
-
-        Calendar c = Calendar.getInstance();
-        long now = c.getTimeInMillis();
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        c.setTimeInMillis(c.getTimeInMillis() + millisSinceMidnight(buildTimestamp));
-        long millisToNextRelease = (c.getTimeInMillis() - now);
-        millisToNextRelease += extraMillis;
-        if (c.getTimeInMillis() < now) {
-            millisToNextRelease += AlarmManager.INTERVAL_DAY;
+        SharedPreferences preferences = CommonUtil.getMainPrefs(context);
+        if (build.equals(preferences.getString(Constants.PREF_PUSHED_BUILD, null))) {
+            Log.d(TAG, "Pushed build " + build + " is already waiting for its check");
+            return;
         }
+        preferences.edit().putString(Constants.PREF_PUSHED_BUILD, build).apply();
+
+        // A later build replaces the pending check, which then finds both
+        long millisToNextCheck = CommonUtil.getClientBucket(context).getOffset(PUSH_CHECK_SPREAD);
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmMgr.set(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + millisToNextCheck,
+                getPushedUpdatesCheckIntent(context));
 
-        return millisToNextRelease;
+        Log.d(TAG, "Setting pushed updates check for " + build + ": "
+                + new Date(System.currentTimeMillis() + millisToNextCheck));
     }
 
-    private static long millisSinceMidnight(long millis) {
-        Calendar c = Calendar.getInstance();
-        c.setTimeInMillis(millis);
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        return millis - c.getTimeInMillis();
+    private static CheckScheduler getScheduler(Context context) {
+        return new CheckScheduler(Clock.systemDefaultZone(), new Random(),
+                CommonUtil.getClientBucket(context));
     }
 }
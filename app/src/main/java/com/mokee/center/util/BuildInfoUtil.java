@@ -18,19 +18,48 @@
 package com.mokee.center.util;
 
 import android.content.Context;
-import android.text.TextUtils;
 import android.text.format.DateUtils;
 
+import com.mokee.center.model.ParsedVersion;
 import com.mokee.os.Build;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class BuildInfoUtil {
 
+    private static final int DISPLAY_DATES_SIZE = 32;
+
+    // Formatted build dates, by locale and build date
+    private static final Map<String, String> sDisplayDates =
+            new LinkedHashMap<String, String>(DISPLAY_DATES_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > DISPLAY_DATES_SIZE;
+                }
+            };
+
+    private static ParsedVersion sDeviceVersion;
+
+    /**
+     * @return the version of the installed build, parsed once
+     */
+    public static ParsedVersion getDeviceVersion() {
+        if (sDeviceVersion == null) {
+            sDeviceVersion = ParsedVersion.of(Build.VERSION);
+        }
+        return sDeviceVersion;
+    }
+
     public static boolean isCompatible(String version) {
-        return getTimeStamp(String.valueOf(getBuildDate(version))) > getTimeStamp(String.valueOf(getBuildDate(Build.VERSION)));
+        return isCompatible(ParsedVersion.of(version));
+    }
+
+    public static boolean isCompatible(ParsedVersion version) {
+        return version.getTimestamp() > getDeviceVersion().getTimestamp();
     }
 
     public static long getTimeStamp(String buildDate) {
@@ -49,42 +78,56 @@ public class BuildInfoUtil {
     }
 
     public static String getDisplayVersion(Context context, String version) {
-        long timestamp = getTimeStamp(String.valueOf(getBuildDate(version)));
-        return getReleaseVersion(version) + " - " + DateUtils.formatDateTime(context, timestamp, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR);
+        return getDisplayVersion(context, ParsedVersion.of(version));
     }
 
-    public static long getBuildDate(String version) {
-        String[] info = version.split("-");
+    /**
+     * @return the release and build date of a version, formatted for the current locale
+     */
+    public static String getDisplayVersion(Context context, ParsedVersion version) {
+        String key = Locale.getDefault().toLanguageTag() + "/" + version.getBuildDate();
         String date;
-        if (isIncrementalUpdate(version)) {
-            date = info[4];
-        } else {
-            date = info[2];
+        synchronized (sDisplayDates) {
+            date = sDisplayDates.get(key);
+            if (date == null) {
+                date = DateUtils.formatDateTime(context, version.getTimestamp(),
+                        DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR);
+                sDisplayDates.put(key, date);
+            }
         }
+        return version.getReleaseVersion() + " - " + date;
+    }
 
-        if (!TextUtils.isDigitsOnly(date)) {
-            return 0;
-        } else {
-            return Long.valueOf(date);
+    /**
+     * Forgets the formatted build dates, for when the configuration changes.
+     */
+    public static void clearDisplayVersions() {
+        synchronized (sDisplayDates) {
+            sDisplayDates.clear();
         }
     }
 
+    public static long getBuildDate(String version) {
+        return ParsedVersion.of(version).getBuildDate();
+    }
+
+    /**
+     * @return the build date an incremental update applies on top of
+     */
+    public static long getSourceBuildDate(String version) {
+        return ParsedVersion.of(version).getSourceBuildDate();
+    }
+
     public static String getReleaseVersion(String version) {
-        String[] info = version.split("-");
-        return isIncrementalUpdate(version) ? info[1] : info[0];
+        return ParsedVersion.of(version).getReleaseVersion();
     }
 
     public static float getReleaseCode(String version) {
-        String code = getReleaseVersion(version);
-        if (!code.toLowerCase(Locale.ENGLISH).startsWith("mk")) {
-            return 0;
-        } else {
-            return Float.valueOf(code.substring(2, code.length()));
-        }
+        return ParsedVersion.of(version).getReleaseCode();
     }
 
     public static boolean isIncrementalUpdate(String version) {
-        return version.toLowerCase(Locale.ENGLISH).startsWith("ota");
+        return ParsedVersion.of(version).isIncremental();
     }
 
     public static String getSuggestUpdateType() {
@@ -36,28 +36,20 @@ import com.lzy.okgo.db.DownloadManager;
 import com.lzy.okserver.OkDownload;
 import com.lzy.okserver.download.DownloadTask;
 import com.mokee.center.R;
+import com.mokee.center.controller.ClientBucket;
 import com.mokee.center.controller.UpdaterService;
 import com.mokee.center.misc.Constants;
-import com.mokee.center.misc.State;
-import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.model.ParsedVersion;
+import com.mokee.os.Build;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.zip.ZipFile;
 
 public class CommonUtil {
 
+    private static ClientBucket sClientBucket;
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -96,66 +88,8 @@ public class CommonUtil {
         }
     }
 
-    public static boolean checkForNewUpdates(File oldJson, File newJson) {
-        List<UpdateInfo> oldList = State.loadState(oldJson);
-        List<UpdateInfo> newList = State.loadState(newJson);
-        Set<String> oldUpdates = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldUpdates.add(update.getName());
-        }
-        // In case of no new updates, the old list should
-        // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldUpdates.contains(update.getName())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     public static int compare(String o1, String o2) {
-        float codeo1 = BuildInfoUtil.getReleaseCode(o1);
-        float codeo2 = BuildInfoUtil.getReleaseCode(o2);
-        if (codeo2 - codeo1 == 0) {
-            return Long.compare(BuildInfoUtil.getBuildDate(o2), BuildInfoUtil.getBuildDate(o1));
-        } else {
-            return Float.compare(codeo1, codeo2);
-        }
-    }
-
-    private static LinkedList<UpdateInfo> getSortedUpdates(LinkedList<UpdateInfo> updates) {
-        Collections.sort(updates, (o1, o2) -> compare(o1.getName(), o2.getName()));
-        return updates;
-    }
-
-    public static LinkedList<UpdateInfo> parseJson(Context context, String json, String tag) throws JSONException {
-        LinkedList<UpdateInfo> updates = new LinkedList<>();
-        JSONArray updatesList = new JSONArray(json);
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
-                continue;
-            }
-            try {
-                UpdateInfo updateInfo = parseJsonUpdate(context, updatesList.getJSONObject(i));
-                if (updateInfo != null) {
-                    updates.add(updateInfo);
-                }
-            } catch (JSONException e) {
-                Log.e(tag, "Could not parse update object, index=" + i, e);
-            }
-        }
-        return CommonUtil.getSortedUpdates(updates);
-    }
-
-    private static UpdateInfo parseJsonUpdate(Context context, JSONObject object) throws JSONException {
-        return new UpdateInfo.Builder()
-                .setName(object.getString("name"))
-                .setDisplayVersion(BuildInfoUtil.getDisplayVersion(context, object.getString("name")))
-                .setMD5Sum(object.getString("md5"))
-                .setDiffSize(object.getLong("diff"))
-                .setFileSize(object.getLong("length"))
-                .setTimestamp(object.getLong("timestamp"))
-                .setDownloadUrl(object.getString("url")).build();
+        return ParsedVersion.of(o1).compareTo(ParsedVersion.of(o2));
     }
 
     public static CharSequence calculateEta(Context context, long speed, long totalBytes, long totalBytesRead) {
@@ -166,18 +100,6 @@ public class CommonUtil {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
-    }
-
-    public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
-    }
-
     public static void triggerUpdate(Context context, String downloadId) {
         final Intent intent = new Intent(context, UpdaterService.class);
         intent.setAction(UpdaterService.ACTION_INSTALL_UPDATE);
@@ -185,6 +107,13 @@ public class CommonUtil {
         context.startService(intent);
     }
 
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_STREAM_UPDATE);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static Map<String, DownloadTask> getDownloadTaskMap() {
         Map<String, DownloadTask> downloadTaskMap = new HashMap<>();
         List<DownloadTask> downloadTasks = OkDownload.restore(DownloadManager.getInstance().getAll());
@@ -201,4 +130,11 @@ public class CommonUtil {
     public static SharedPreferences getMainPrefs(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context);
     }
+
+    public static synchronized ClientBucket getClientBucket(Context context) {
+        if (sClientBucket == null) {
+            sClientBucket = new ClientBucket(Build.getUniqueID(context));
+        }
+        return sClientBucket;
+    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import com.mokee.utils.HashUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes files with any number of digests in a single read.
+ * <p>
+ * A file is read through its channel into one large direct buffer, which every digest
+ * then consumes as it is, so the data is copied once instead of through a chain of
+ * streams. Regions are not memory mapped: mapping a package of a few GB in pieces can
+ * run a 32 bit process out of address space before the mappings are collected.
+ * <p>
+ * Files submitted together are hashed in parallel, by a small pool that never uses
+ * all the cores. A hash is cancelled by cancelling its {@link Future}, which
+ * interrupts the read and fails the hash with an {@link IOException}.
+ */
+public class FileHasher {
+
+    public static final String MD5 = "MD5";
+    public static final String SHA_1 = "SHA-1";
+    public static final String SHA_256 = "SHA-256";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int POOL_SIZE =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+    private static ThreadPoolExecutor sExecutor;
+
+    public interface ProgressListener {
+        /**
+         * Called on the hashing thread after every read.
+         */
+        void onProgress(long hashedBytes, long totalBytes);
+    }
+
+    public static class Result {
+        private final Map<String, String> mDigests;
+
+        private Result(Map<String, String> digests) {
+            mDigests = Collections.unmodifiableMap(digests);
+        }
+
+        /**
+         * @return the digest as lower case hex, null if it was not asked for
+         */
+        public String get(String algorithm) {
+            return mDigests.get(algorithm.toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private FileHasher() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "FileHasher");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Hashes a file on the pool.
+     *
+     * @param listener may be null
+     */
+    public static Future<Result> submit(File file, ProgressListener listener, String... algorithms) {
+        return getExecutor().submit(() -> hash(file, listener, algorithms));
+    }
+
+    /**
+     * Hashes a file on the calling thread, which can be interrupted to stop it.
+     *
+     * @param listener may be null
+     */
+    public static Result hash(File file, ProgressListener listener, String... algorithms)
+            throws IOException {
+        MessageDigest[] digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            try {
+                digests[i] = MessageDigest.getInstance(algorithms[i]);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long total = channel.size();
+            long hashed = 0;
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                int limit = buffer.limit();
+                for (MessageDigest digest : digests) {
+                    buffer.position(0);
+                    digest.update(buffer);
+                }
+                hashed += limit;
+                buffer.clear();
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Hashing " + file.getName() + " was cancelled");
+                }
+                if (listener != null) {
+                    listener.onProgress(hashed, total);
+                }
+            }
+        }
+
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < digests.length; i++) {
+            result.put(algorithms[i].toUpperCase(Locale.ENGLISH), HashUtils.toHex(digests[i].digest()));
+        }
+        return new Result(result);
+    }
+}
@@ -27,10 +27,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
-import java.util.Enumeration;
 import java.util.Locale;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class FileUtil {
 
@@ -44,49 +43,47 @@ public class FileUtil {
         return new File(context.getCacheDir(), "updates.cached");
     }
 
+    public static File getDownloadQueueFile(Context context) {
+        return new File(context.getFilesDir(), "downloads.queue");
+    }
+
+    public static File getBlockManifestFile(Context context, String downloadId) {
+        return new File(context.getCacheDir(), downloadId + ".blocks");
+    }
+
+    public static File getPackageMetadataFile(Context context, String downloadId) {
+        return new File(context.getCacheDir(), downloadId + ".meta");
+    }
+
     public static String getPartialName(String file) {
         int extensionPosition = file.lastIndexOf(".");
         return file.substring(0, extensionPosition) + ".partial";
     }
 
     /**
-     * Get the offset to the compressed data of a file inside the given zip
+     * Hashes the file on the {@link FileHasher} pool, interrupting the calling thread
+     * stops the hash.
      *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
+     * @param listener may be null
      */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
+    public static boolean checkMd5(String md5, File file, FileHasher.ProgressListener listener)
+            throws InterruptedException {
+        Future<FileHasher.Result> result = FileHasher.submit(file, listener, FileHasher.MD5);
+        try {
+            return TextUtils.equals(md5, result.get().get(FileHasher.MD5).toUpperCase(Locale.ENGLISH));
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not hash " + file.getName(), e.getCause());
+            return false;
+        } finally {
+            // Does nothing once the hash is done
+            result.cancel(true);
         }
-        Log.e(FileUtil.class.getName(), "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
-    public static boolean checkMd5(String md5, File file) {
-        return TextUtils.equals(md5, calculateMd5(file));
     }
 
     public static String calculateMd5(File file) {
         try {
-            FileInputStream inputSource = new FileInputStream(file);
-            return StreamUtil.calculateMd5(inputSource).toUpperCase(Locale.ENGLISH);
+            return FileHasher.hash(file, null, FileHasher.MD5).get(FileHasher.MD5)
+                    .toUpperCase(Locale.ENGLISH);
         } catch (Exception e) {
             return null;
         }
@@ -22,15 +22,25 @@ import android.content.SharedPreferences;
 import android.text.TextUtils;
 
 import com.lzy.okgo.OkGo;
-import com.lzy.okgo.callback.StringCallback;
 import com.lzy.okgo.model.HttpParams;
+import com.lzy.okgo.request.PostRequest;
 import com.mokee.center.MKCenterApplication;
 import com.mokee.center.R;
+import com.mokee.center.controller.UpdateCatalog;
 import com.mokee.center.model.DonationInfo;
+import com.mokee.center.model.UpdateInfo;
 import com.mokee.os.Build;
 import com.mokee.security.License;
 import com.mokee.security.LicenseUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import static com.mokee.center.misc.Constants.AVAILABLE_UPDATES_TAG;
 import static com.mokee.center.misc.Constants.PREF_INCREMENTAL_UPDATES;
 import static com.mokee.center.misc.Constants.PREF_UPDATE_TYPE;
@@ -38,7 +48,14 @@ import static com.mokee.center.misc.Constants.PREF_VERIFIED_UPDATES;
 
 public class OkGoUtil {
 
-    public static void fetchAvailableUpdates(Context context, StringCallback callback) {
+    public static void fetchAvailableUpdates(Context context, UpdateListCallback callback) {
+        fetchAvailableUpdates(context, AVAILABLE_UPDATES_TAG, callback);
+    }
+
+    /**
+     * @param tag to cancel the request with, so that callers do not cancel each other's
+     */
+    public static void fetchAvailableUpdates(Context context, Object tag, UpdateListCallback callback) {
         HttpParams params = buildParams(context);
         DonationInfo donationInfo = MKCenterApplication.getInstance().getDonationInfo();
         SharedPreferences mMainPrefs = CommonUtil.getMainPrefs(context);
@@ -69,7 +86,27 @@ public class OkGoUtil {
         params.put("update_type", configUpdateType);
         params.put("version", Build.VERSION);
 
-        OkGo.<String>post(url).tag(AVAILABLE_UPDATES_TAG).params(params).execute(callback);
+        PostRequest<LinkedList<UpdateInfo>> request = OkGo.<LinkedList<UpdateInfo>>post(url)
+                .tag(tag).params(params);
+
+        // Ask for the list only if it changed since it was stored
+        callback.setRequestKey(getRequestKey(url, params));
+        request.headers(callback.getValidators(UpdateCatalog.getInstance(context).getSnapshot().isStored()));
+        request.execute(callback);
+    }
+
+    private static String getRequestKey(String url, HttpParams params) {
+        StringBuilder key = new StringBuilder(url);
+        for (Map.Entry<String, List<String>> param : new TreeMap<>(params.urlParamsMap).entrySet()) {
+            key.append('&').append(param.getKey()).append('=').append(param.getValue());
+        }
+        try {
+            return StreamUtil.calculateMd5(new ByteArrayInputStream(
+                    key.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            // Not going to happen with an in-memory stream
+            throw new RuntimeException(e);
+        }
     }
 
     public static HttpParams buildParams(Context context) {
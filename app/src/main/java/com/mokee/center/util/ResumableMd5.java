@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * MD5 (RFC 1321) whose intermediate state is {@link Serializable}. A download can
+ * checkpoint the digest together with its progress and continue hashing after a
+ * pause or a process restart, instead of reading the already written bytes again.
+ */
+public class ResumableMd5 implements Serializable {
+
+    private static final long serialVersionUID = -2841150735204567812L;
+
+    private static final int[] SHIFTS = {
+            7, 12, 17, 22,
+            5, 9, 14, 20,
+            4, 11, 16, 23,
+            6, 10, 15, 21
+    };
+
+    private static final int[] TABLE = {
+            0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee, 0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+            0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be, 0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+            0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa, 0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+            0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed, 0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+            0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c, 0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+            0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05, 0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+            0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039, 0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+            0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1, 0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+    };
+
+    private final int[] mState = {0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476};
+    private final byte[] mBuffer = new byte[64];
+    private long mCount;
+
+    private transient int[] mBlock;
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        int index = (int) (mCount & 63);
+        mCount += length;
+        if (index > 0) {
+            int fill = 64 - index;
+            if (length < fill) {
+                System.arraycopy(input, offset, mBuffer, index, length);
+                return;
+            }
+            System.arraycopy(input, offset, mBuffer, index, fill);
+            transform(mBuffer, 0);
+            offset += fill;
+            length -= fill;
+        }
+        while (length >= 64) {
+            transform(input, offset);
+            offset += 64;
+            length -= 64;
+        }
+        if (length > 0) {
+            System.arraycopy(input, offset, mBuffer, 0, length);
+        }
+    }
+
+    /**
+     * @return an independent digest in the same state, to be hashed on or stored
+     */
+    public ResumableMd5 copy() {
+        ResumableMd5 copy = new ResumableMd5();
+        System.arraycopy(mState, 0, copy.mState, 0, mState.length);
+        System.arraycopy(mBuffer, 0, copy.mBuffer, 0, mBuffer.length);
+        copy.mCount = mCount;
+        return copy;
+    }
+
+    /**
+     * @return the digest of everything hashed so far, the state itself is left untouched
+     */
+    public byte[] digest() {
+        ResumableMd5 copy = copy();
+
+        long bits = mCount << 3;
+        int index = (int) (mCount & 63);
+        byte[] padding = new byte[(index < 56 ? 56 : 120) - index + 8];
+        padding[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            padding[padding.length - 8 + i] = (byte) (bits >>> (8 * i));
+        }
+        copy.update(padding, 0, padding.length);
+
+        byte[] digest = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                digest[i * 4 + j] = (byte) (copy.mState[i] >>> (8 * j));
+            }
+        }
+        return digest;
+    }
+
+    public String hexDigest() {
+        StringBuilder builder = new StringBuilder(32);
+        for (byte b : digest()) {
+            builder.append(String.format(Locale.ENGLISH, "%02X", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    private void transform(byte[] block, int offset) {
+        if (mBlock == null) {
+            mBlock = new int[16];
+        }
+        int[] x = mBlock;
+        for (int i = 0; i < 16; i++) {
+            int j = offset + i * 4;
+            x[i] = (block[j] & 0xff) | (block[j + 1] & 0xff) << 8
+                    | (block[j + 2] & 0xff) << 16 | (block[j + 3] & 0xff) << 24;
+        }
+
+        int a = mState[0];
+        int b = mState[1];
+        int c = mState[2];
+        int d = mState[3];
+        // One loop per round, so the round functions need no branching
+        for (int i = 0; i < 16; i++) {
+            int f = (b & c) | (~b & d);
+            int temp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + TABLE[i] + x[i], SHIFTS[i & 3]);
+            a = temp;
+        }
+        for (int i = 16; i < 32; i++) {
+            int f = (d & b) | (~d & c);
+            int temp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + TABLE[i] + x[(5 * i + 1) & 15], SHIFTS[4 | (i & 3)]);
+            a = temp;
+        }
+        for (int i = 32; i < 48; i++) {
+            int f = b ^ c ^ d;
+            int temp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + TABLE[i] + x[(3 * i + 5) & 15], SHIFTS[8 | (i & 3)]);
+            a = temp;
+        }
+        for (int i = 48; i < 64; i++) {
+            int f = c ^ (b | ~d);
+            int temp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + TABLE[i] + x[(7 * i) & 15], SHIFTS[12 | (i & 3)]);
+            a = temp;
+        }
+        mState[0] += a;
+        mState[1] += b;
+        mState[2] += c;
+        mState[3] += d;
+    }
+}
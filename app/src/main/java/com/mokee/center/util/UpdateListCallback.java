@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.lzy.okgo.callback.AbsCallback;
+import com.lzy.okgo.model.HttpHeaders;
+import com.mokee.center.misc.Constants;
+import com.mokee.center.model.UpdateInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.LinkedList;
+
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Parses the update list while it is being received, so only one update is held as
+ * JSON at a time instead of the whole response.
+ * <p>
+ * The list is fetched conditionally when it was stored before: if the server says it
+ * did not change, nothing is parsed and the body of the response is null. Once a new
+ * list is stored, {@link #saveValidators()} remembers what to ask the server next time.
+ */
+public abstract class UpdateListCallback extends AbsCallback<LinkedList<UpdateInfo>> {
+
+    private final Context mContext;
+    private String mRequestKey;
+    private String mETag;
+    private String mLastModified;
+
+    public UpdateListCallback(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    void setRequestKey(String requestKey) {
+        mRequestKey = requestKey;
+    }
+
+    /**
+     * @param stored whether the list received last is still stored
+     * @return the validators of the list received last, if it was received for the very
+     * same request and is still stored, so the server only sends it again if it changed
+     */
+    HttpHeaders getValidators(boolean stored) {
+        HttpHeaders headers = new HttpHeaders();
+        SharedPreferences prefs = CommonUtil.getMainPrefs(mContext);
+        if (!stored || mRequestKey == null
+                || !mRequestKey.equals(prefs.getString(Constants.PREF_UPDATE_LIST_KEY, null))) {
+            return headers;
+        }
+        String eTag = prefs.getString(Constants.PREF_UPDATE_LIST_ETAG, null);
+        String lastModified = prefs.getString(Constants.PREF_UPDATE_LIST_LAST_MODIFIED, null);
+        if (eTag != null) {
+            headers.put(HttpHeaders.HEAD_KEY_IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            headers.put(HttpHeaders.HEAD_KEY_IF_MODIFIED_SINCE, lastModified);
+        }
+        return headers;
+    }
+
+    @Override
+    public LinkedList<UpdateInfo> convertResponse(Response response) throws Throwable {
+        if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            return null;
+        }
+        mETag = response.header(HttpHeaders.HEAD_KEY_E_TAG);
+        mLastModified = response.header(HttpHeaders.HEAD_KEY_LAST_MODIFIED);
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("Empty response");
+        }
+        try (Reader reader = body.charStream()) {
+            return UpdateListParser.parse(reader);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Remembers the validators of the list that was just received. Call it only once the
+     * list is stored, as the next fetch may not return it again.
+     */
+    protected void saveValidators() {
+        CommonUtil.getMainPrefs(mContext).edit()
+                .putString(Constants.PREF_UPDATE_LIST_KEY, mRequestKey)
+                .putString(Constants.PREF_UPDATE_LIST_ETAG, mETag)
+                .putString(Constants.PREF_UPDATE_LIST_LAST_MODIFIED, mLastModified)
+                .apply();
+    }
+}
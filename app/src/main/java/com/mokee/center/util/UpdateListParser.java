@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mokee.center.misc.Constants;
+import com.mokee.center.model.ParsedVersion;
+import com.mokee.center.model.UpdateInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.LinkedList;
+
+/**
+ * Reads the update list one update at a time. Updates that cannot be parsed are
+ * skipped, anything else that is wrong with the list fails it as a whole.
+ */
+public class UpdateListParser {
+
+    private static final String TAG = "UpdateListParser";
+
+    /**
+     * The server answered with a status object instead of a list.
+     */
+    public static class NotAListException extends IOException {
+        private static final long serialVersionUID = 7139258163302046015L;
+
+        private final boolean mOutOfDate;
+
+        NotAListException(boolean outOfDate) {
+            super("The server did not send an update list");
+            mOutOfDate = outOfDate;
+        }
+
+        public boolean isOutOfDate() {
+            return mOutOfDate;
+        }
+    }
+
+    private UpdateListParser() {
+    }
+
+    public static LinkedList<UpdateInfo> parse(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                boolean outOfDate = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    outOfDate |= Constants.PREF_OUT_OF_DATE.equals(reader.nextName());
+                    reader.skipValue();
+                }
+                throw new NotAListException(outOfDate);
+            }
+
+            LinkedList<UpdateInfo> updates = new LinkedList<>();
+            reader.beginArray();
+            for (int i = 0; reader.hasNext(); i++) {
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    Log.e(TAG, "Could not parse update object, index=" + i);
+                    reader.skipValue();
+                    continue;
+                }
+                UpdateInfo updateInfo = parseUpdate(reader);
+                if (updateInfo != null) {
+                    updates.add(updateInfo);
+                } else {
+                    Log.e(TAG, "Could not parse update object, index=" + i);
+                }
+            }
+            reader.endArray();
+            Collections.sort(updates, (o1, o2) -> o1.getVersion().compareTo(o2.getVersion()));
+            return updates;
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Invalid update list", e);
+        }
+    }
+
+    /**
+     * @return null if a field is missing or has the wrong type, with the object consumed
+     */
+    private static UpdateInfo parseUpdate(JsonReader reader) throws IOException {
+        String name = null;
+        String md5 = null;
+        String url = null;
+        String blocks = null;
+        Long diff = null;
+        Long length = null;
+        Long timestamp = null;
+        Long rollout = null;
+        boolean valid = true;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String value = nextValue(reader);
+            try {
+                switch (key) {
+                    case "name":
+                        name = value;
+                        break;
+                    case "md5":
+                        md5 = value;
+                        break;
+                    case "url":
+                        url = value;
+                        break;
+                    case "blocks":
+                        blocks = value;
+                        break;
+                    case "diff":
+                        diff = toLong(value);
+                        break;
+                    case "length":
+                        length = toLong(value);
+                        break;
+                    case "timestamp":
+                        timestamp = toLong(value);
+                        break;
+                    case "rollout":
+                        rollout = toLong(value);
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                valid = false;
+            }
+        }
+        reader.endObject();
+
+        if (!valid || name == null || md5 == null || url == null
+                || diff == null || length == null || timestamp == null) {
+            return null;
+        }
+        try {
+            // The list is sorted by version, a name that cannot be parsed would fail all of it
+            ParsedVersion.of(name);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return null;
+        }
+        // Builds without a rollout percentage go to everybody
+        return new UpdateInfo.Builder()
+                .setName(name)
+                .setMD5Sum(md5)
+                .setDiffSize(diff)
+                .setFileSize(length)
+                .setTimestamp(timestamp)
+                .setBlockManifestUrl(blocks)
+                .setRollout(rollout == null ? UpdateInfo.FULL_ROLLOUT
+                        : (int) Math.max(0, Math.min(rollout, UpdateInfo.FULL_ROLLOUT)))
+                .setDownloadUrl(url).build();
+    }
+
+    private static Long toLong(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return (long) Double.parseDouble(value);
+        }
+    }
+
+    /**
+     * @return the value as a string, or null for null and values that are not scalars
+     */
+    private static String nextValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a zip file, read straight from the end of the file.
+ * <p>
+ * Unlike {@link java.util.zip.ZipFile} nothing but the end records, the central
+ * directory and, on request, single local headers are read, so the zip does not have
+ * to be local: any {@link Source} that can read at a position will do. The index of
+ * the last local file read is kept, so asking about the same package again costs
+ * nothing as long as the file did not change.
+ */
+public class ZipIndex {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static ZipIndex sLastIndex;
+
+    private final Source mSource;
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final Map<String, Entry> mEntries;
+
+    /**
+     * Random access to the bytes of a zip.
+     */
+    public interface Source {
+        long size() throws IOException;
+
+        /**
+         * Fills the remaining space of the buffer with the bytes at the given position.
+         */
+        void readFully(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    private static class FileSource implements Source {
+        private final File mFile;
+
+        FileSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public long size() {
+            return mFile.length();
+        }
+
+        @Override
+        public void readFully(ByteBuffer buffer, long position) throws IOException {
+            try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+        }
+    }
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public boolean isStored() {
+            return mMethod == METHOD_STORED;
+        }
+    }
+
+    private ZipIndex(Source source, File file, long length, long lastModified, Map<String, Entry> entries) {
+        mSource = source;
+        mFile = file;
+        mLength = length;
+        mLastModified = lastModified;
+        mEntries = entries;
+    }
+
+    public static synchronized ZipIndex get(File file) throws IOException {
+        ZipIndex index = sLastIndex;
+        if (index == null || !index.mFile.equals(file) || index.mLength != file.length()
+                || index.mLastModified != file.lastModified()) {
+            long lastModified = file.lastModified();
+            index = read(new FileSource(file), file, lastModified);
+            sLastIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Reads the index of a zip that is not a local file. Nothing is cached.
+     */
+    public static ZipIndex read(Source source) throws IOException {
+        return read(source, null, 0);
+    }
+
+    private static ZipIndex read(Source source, File file, long lastModified) throws IOException {
+        long length = source.size();
+        if (length < EOCD_SIZE) {
+            throw new ZipException("Not a zip file");
+        }
+
+        // The end record is followed by a comment of up to 64k
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(source, length - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE
+                    && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        long eocdPosition = length - tailSize + eocd;
+        if (eocdPosition >= ZIP64_EOCD_LOCATOR_SIZE) {
+            ByteBuffer locator = readFully(source, eocdPosition - ZIP64_EOCD_LOCATOR_SIZE,
+                    ZIP64_EOCD_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64 = readFully(source, locator.getLong(8), ZIP64_EOCD_SIZE);
+                if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Invalid zip64 end of central directory");
+                }
+                entryCount = zip64.getLong(32);
+                directorySize = zip64.getLong(40);
+                directoryOffset = zip64.getLong(48);
+            }
+        }
+        if (directoryOffset + directorySize > eocdPosition || directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        ByteBuffer directory = readFully(source, directoryOffset, (int) directorySize);
+        Map<String, Entry> entries = new HashMap<>();
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directorySize
+                    || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long size = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xffffffffL;
+
+            byte[] name = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+
+            // Sizes and offsets that do not fit are in the zip64 extra field,
+            // in this order and only if the regular field is saturated
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int dataSize = directory.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (size == 0xffffffffL) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + dataSize;
+            }
+
+            String entryName = new String(name, StandardCharsets.UTF_8);
+            entries.put(entryName, new Entry(entryName, method, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return new ZipIndex(source, file, length, lastModified, Collections.unmodifiableMap(entries));
+    }
+
+    private static ByteBuffer readFully(Source source, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        source.readFully(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    public boolean hasEntries(String... names) {
+        for (String name : names) {
+            if (!mEntries.containsKey(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the offset to the data of an entry. The local header is read for it, since its
+     * extra field does not have to match the one in the central directory. Entries
+     * written with a data descriptor have their sizes after the data, which does not
+     * move the data itself.
+     *
+     * @throws IllegalArgumentException if the given entry is not found
+     */
+    public long getDataOffset(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("The given entry was not found");
+        }
+        synchronized (entry) {
+            if (entry.mDataOffset < 0) {
+                ByteBuffer header = readFully(mSource, entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+                if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    throw new ZipException("Invalid local header for " + name);
+                }
+                entry.mDataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE
+                        + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+            }
+            return entry.mDataOffset;
+        }
+    }
+
+    /**
+     * Reads a whole entry into memory, meant for small ones like payload properties.
+     *
+     * @throws IllegalArgumentException if the given entry is not found
+     */
+    public byte[] readEntry(String name, int maxSize) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("The given entry was not found");
+        }
+        if (entry.mSize > maxSize || entry.mCompressedSize > maxSize) {
+            throw new ZipException(name + " is too large");
+        }
+        long offset = getDataOffset(name);
+        ByteBuffer data = readFully(mSource, offset, (int) entry.mCompressedSize);
+        if (entry.mMethod == METHOD_STORED) {
+            return data.array();
+        }
+        if (entry.mMethod != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.mMethod);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            byte[] content = new byte[(int) entry.mSize];
+            int read = 0;
+            while (read < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, read, content.length - read);
+                if (count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != content.length) {
+                throw new ZipException("Truncated entry " + name);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt entry " + name);
+        } finally {
+            inflater.end();
+        }
+    }
+}
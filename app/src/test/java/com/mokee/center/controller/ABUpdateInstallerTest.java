@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import com.mokee.center.FakeContext;
+import com.mokee.center.model.PackageMetadata;
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.model.UpdateStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streaming installs against a local server, with update_engine and the controller faked.
+ */
+public class ABUpdateInstallerTest {
+
+    private static final String DOWNLOAD_ID = "MK100.0-RELEASE-202007010000-device";
+    private static final String[] PROPERTIES = {"FILE_HASH=abc", "FILE_SIZE=4096"};
+
+    private final OkHttpClient mClient = new OkHttpClient();
+    private final MockWebServer mServer = new MockWebServer();
+    private final FakeHost mHost = new FakeHost();
+    private final FakeEngine mEngine = new FakeEngine();
+    private FakeContext mContext;
+    private ABUpdateInstaller mInstaller;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.start();
+        mContext = new FakeContext();
+        // Run everything on the test thread
+        mInstaller = new ABUpdateInstaller(mContext, mHost, mEngine, mClient, Runnable::run, Runnable::run);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void streamsStoredPayload() throws IOException {
+        byte[] payload = newPayload();
+        byte[] zip = newPackage(payload, ZipEntry.STORED);
+        mServer.setDispatcher(new RangeDispatcher(zip, true));
+
+        mInstaller.installStreaming(DOWNLOAD_ID);
+
+        assertEquals(mServer.url("/package.zip").toString(), mEngine.mUrl);
+        assertEquals(payload.length, mEngine.mSize);
+        assertArrayEquals(payload, Arrays.copyOfRange(zip, (int) mEngine.mOffset,
+                (int) mEngine.mOffset + payload.length));
+        List<String> headers = Arrays.asList(mEngine.mHeaders);
+        assertTrue(headers.containsAll(Arrays.asList(PROPERTIES)));
+        assertTrue(headers.get(headers.size() - 1).startsWith("USER_AGENT="));
+        assertTrue(mHost.mStarted.isEmpty());
+        assertEquals(UpdateStatus.INSTALLING, mHost.mUpdate.getStatus());
+        assertTrue(ABUpdateInstaller.isInstallingUpdate(mContext));
+    }
+
+    @Test
+    public void downloadsWhenRangesAreIgnored() throws IOException {
+        mServer.setDispatcher(new RangeDispatcher(newPackage(newPayload(), ZipEntry.STORED), false));
+
+        mInstaller.installStreaming(DOWNLOAD_ID);
+
+        assertEquals(1, mServer.getRequestCount());
+        assertFallback();
+    }
+
+    @Test
+    public void downloadsWhenPayloadIsCompressed() throws IOException {
+        mServer.setDispatcher(new RangeDispatcher(newPackage(newPayload(), ZipEntry.DEFLATED), true));
+
+        mInstaller.installStreaming(DOWNLOAD_ID);
+
+        assertFallback();
+    }
+
+    private void assertFallback() {
+        assertEquals(Arrays.asList(DOWNLOAD_ID), mHost.mStarted);
+        assertNull(mEngine.mUrl);
+        assertTrue(!ABUpdateInstaller.isInstallingUpdate(mContext));
+    }
+
+    private static byte[] newPayload() {
+        byte[] payload = new byte[4096];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    private static byte[] newPackage(byte[] payload, int method) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("META-INF/com/android/metadata"));
+            zip.write("ota-type=AB\n".getBytes(StandardCharsets.UTF_8));
+            ZipEntry entry = new ZipEntry("payload.bin");
+            entry.setMethod(method);
+            if (method == ZipEntry.STORED) {
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                entry.setSize(payload.length);
+                entry.setCompressedSize(payload.length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            zip.write(payload);
+            zip.putNextEntry(new ZipEntry("payload_properties.txt"));
+            zip.write(String.join("\n", PROPERTIES).getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Serves a package, honouring byte ranges like the mirrors do or ignoring them.
+     */
+    private static class RangeDispatcher extends Dispatcher {
+
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+        private final byte[] mPackage;
+        private final boolean mRanges;
+
+        RangeDispatcher(byte[] pkg, boolean ranges) {
+            mPackage = pkg;
+            mRanges = ranges;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String range = request.getHeader("Range");
+            Matcher matcher = range != null ? RANGE.matcher(range) : null;
+            if (!mRanges || matcher == null || !matcher.matches()) {
+                return new MockResponse().setBody(new Buffer().write(mPackage));
+            }
+            int start = Integer.parseInt(matcher.group(1));
+            int end = Math.min(Integer.parseInt(matcher.group(2)), mPackage.length - 1);
+            return new MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + mPackage.length)
+                    .setBody(new Buffer().write(Arrays.copyOfRange(mPackage, start, end + 1)));
+        }
+    }
+
+    private class FakeHost implements ABUpdateInstaller.Host {
+
+        final UpdateInfo mUpdate = new UpdateInfo.Builder().setName(DOWNLOAD_ID).build();
+        final List<String> mStarted = new ArrayList<>();
+
+        @Override
+        public UpdateInfo getUpdate(String downloadId) {
+            return DOWNLOAD_ID.equals(downloadId) ? mUpdate : null;
+        }
+
+        @Override
+        public PackageMetadata getPackageMetadata(String downloadId) throws IOException {
+            throw new IOException("Not downloaded");
+        }
+
+        @Override
+        public Call newStreamProbe(String downloadId) {
+            return mClient.newCall(new Request.Builder()
+                    .url(mServer.url("/package.zip"))
+                    .header("Range", "bytes=0-0")
+                    .build());
+        }
+
+        @Override
+        public void startDownload(String downloadId) {
+            mStarted.add(downloadId);
+        }
+
+        @Override
+        public void notifyUpdateChange(String downloadId) {
+        }
+
+        @Override
+        public void notifyInstallProgress(String downloadId) {
+        }
+    }
+
+    private static class FakeEngine implements PayloadEngine {
+
+        String mUrl;
+        long mOffset;
+        long mSize;
+        String[] mHeaders;
+
+        @Override
+        public boolean bind(Callback callback) {
+            return true;
+        }
+
+        @Override
+        public void applyPayload(String url, long offset, long size, String[] headers) {
+            mUrl = url;
+            mOffset = offset;
+            mSize = size;
+            mHeaders = headers;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void setPerformanceMode(boolean enable) {
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check times replayed on a fixed clock in a zone without daylight saving time.
+ */
+public class CheckSchedulerTest {
+
+    private static final ZoneId ZONE = ZoneId.of("Asia/Shanghai");
+    private static final LocalDate TODAY = LocalDate.of(2020, 7, 15);
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final ClientBucket mBucket = new ClientBucket("0123456789abcdef");
+
+    @Test
+    public void checksAfterReleaseWindow() {
+        // Builds around 20:10, the half hours around it are part of the window
+        long[] builds = dailyBuilds(LocalTime.of(20, 10), 10);
+
+        long next = newScheduler(LocalTime.of(10, 0), 0).getNextCheck(builds);
+
+        assertEquals(at(TODAY, LocalTime.of(21, 30)) + mBucket.getOffset(HOUR), next);
+    }
+
+    @Test
+    public void checksTomorrowOnceTodaysWindowIsOver() {
+        long[] builds = dailyBuilds(LocalTime.of(20, 10), 10);
+
+        long next = newScheduler(LocalTime.of(22, 0), 0).getNextCheck(builds);
+
+        assertEquals(at(TODAY.plusDays(1), LocalTime.of(21, 30)) + mBucket.getOffset(HOUR), next);
+    }
+
+    @Test
+    public void windowBeforeMidnightIsCheckedAfterIt() {
+        // The window wraps around midnight and ends at 00:30
+        long[] builds = dailyBuilds(LocalTime.of(23, 50), 10);
+
+        long next = newScheduler(LocalTime.of(12, 0), 0).getNextCheck(builds);
+
+        assertEquals(at(TODAY.plusDays(1), LocalTime.of(1, 0)) + mBucket.getOffset(HOUR), next);
+    }
+
+    @Test
+    public void recentBuildsOutweighOldOnes() {
+        // Builds moved from 08:10 to 20:10 five weeks ago
+        long[] old = dailyBuilds(LocalTime.of(8, 10), 60);
+        long[] recent = dailyBuilds(LocalTime.of(20, 10), 35);
+        long[] builds = new long[recent.length + 25];
+        System.arraycopy(recent, 0, builds, 0, recent.length);
+        System.arraycopy(old, 35, builds, recent.length, 25);
+
+        long next = newScheduler(LocalTime.of(6, 0), 0).getNextCheck(builds);
+
+        assertEquals(at(TODAY, LocalTime.of(21, 30)) + mBucket.getOffset(HOUR), next);
+    }
+
+    @Test
+    public void checksDailyWithoutHistory() {
+        CheckScheduler scheduler = newScheduler(LocalTime.of(10, 0), 0);
+        long now = at(TODAY, LocalTime.of(10, 0));
+
+        assertEquals(now + TimeUnit.DAYS.toMillis(1), scheduler.getNextCheck(new long[0]));
+        assertEquals(now + TimeUnit.DAYS.toMillis(1), scheduler.getNextCheck(new long[]{0, -1}));
+    }
+
+    @Test
+    public void retriesWithinJitteredBounds() {
+        long now = at(TODAY, LocalTime.of(10, 0));
+        assertRetries(now, 1, 15 * MINUTE);
+        assertRetries(now, 3, 60 * MINUTE);
+        // Capped at 12 hours, also for counts that would overflow the shift
+        assertRetries(now, 7, 12 * HOUR);
+        assertRetries(now, 100, 12 * HOUR);
+        // A count of 0 is treated like the first failure
+        assertRetries(now, 0, 15 * MINUTE);
+    }
+
+    private void assertRetries(long now, int failures, long delay) {
+        Set<Long> retries = new HashSet<>();
+        for (int seed = 0; seed < 1000; seed++) {
+            long retry = newScheduler(LocalTime.of(10, 0), seed).getRetry(failures);
+            assertTrue(retry >= now + delay / 2);
+            assertTrue(retry < now + delay);
+            retries.add(retry);
+        }
+        // Devices that failed together do not retry together
+        assertTrue(retries.size() > 900);
+    }
+
+    private CheckScheduler newScheduler(LocalTime now, long seed) {
+        Clock clock = Clock.fixed(LocalDateTime.of(TODAY, now).atZone(ZONE).toInstant(), ZONE);
+        return new CheckScheduler(clock, new Random(seed), mBucket);
+    }
+
+    /**
+     * @return build timestamps in seconds, one a day for the given number of days up to
+     * yesterday, in random order like in the update list
+     */
+    private static long[] dailyBuilds(LocalTime time, int days) {
+        long[] builds = new long[days];
+        for (int i = 0; i < days; i++) {
+            builds[i] = TimeUnit.MILLISECONDS.toSeconds(at(TODAY.minusDays(i + 1), time));
+        }
+        Random random = new Random(42);
+        for (int i = builds.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = builds[i];
+            builds[i] = builds[j];
+            builds[j] = swap;
+        }
+        return builds;
+    }
+
+    private static long at(LocalDate date, LocalTime time) {
+        return LocalDateTime.of(date, time).atZone(ZONE).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Buckets a population of synthetic devices and checks that they spread evenly.
+ */
+public class ClientBucketTest {
+
+    private static final int DEVICES = 10000;
+    private static final long SPREAD = TimeUnit.HOURS.toMillis(1);
+    // 99.9th percentile of the chi-squared distribution with 99 and 9 degrees of freedom
+    private static final double CHI_SQUARED_99 = 148.2;
+    private static final double CHI_SQUARED_9 = 27.9;
+
+    private static String[] sIds;
+    private static ClientBucket[] sBuckets;
+
+    @BeforeClass
+    public static void setUpPopulation() {
+        Random random = new Random(42);
+        sIds = new String[DEVICES];
+        sBuckets = new ClientBucket[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            sIds[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+            sBuckets[i] = new ClientBucket(sIds[i]);
+        }
+    }
+
+    @Test
+    public void percentilesAreUniform() {
+        int[] counts = new int[100];
+        for (ClientBucket bucket : sBuckets) {
+            int percentile = bucket.getPercentile();
+            assertTrue(percentile >= 0 && percentile < 100);
+            counts[percentile]++;
+        }
+        assertTrue(chiSquared(counts) < CHI_SQUARED_99);
+    }
+
+    @Test
+    public void rolloutsReachTheirShare() {
+        for (int percentage : new int[]{1, 5, 10, 25, 50, 90}) {
+            int inRollout = 0;
+            for (ClientBucket bucket : sBuckets) {
+                if (bucket.isInRollout(percentage)) {
+                    inRollout++;
+                }
+            }
+            assertEquals(percentage / 100.0, inRollout / (double) DEVICES, 0.015);
+        }
+    }
+
+    @Test
+    public void rolloutsOnlyGrow() {
+        for (ClientBucket bucket : sBuckets) {
+            assertFalse(bucket.isInRollout(0));
+            assertTrue(bucket.isInRollout(100));
+            boolean previous = false;
+            for (int percentage = 0; percentage <= 100; percentage++) {
+                boolean inRollout = bucket.isInRollout(percentage);
+                // A device that got a build at a stage keeps getting it at later stages
+                assertTrue(inRollout || !previous);
+                previous = inRollout;
+            }
+        }
+    }
+
+    @Test
+    public void offsetsAreUniform() {
+        int[] counts = new int[10];
+        for (ClientBucket bucket : sBuckets) {
+            long offset = bucket.getOffset(SPREAD);
+            assertTrue(offset >= 0 && offset < SPREAD);
+            counts[(int) (offset * counts.length / SPREAD)]++;
+        }
+        assertTrue(chiSquared(counts) < CHI_SQUARED_9);
+    }
+
+    @Test
+    public void offsetsDoNotDependOnRollout() {
+        // The first devices of a rollout must not all check at the same time
+        int[] counts = new int[10];
+        for (ClientBucket bucket : sBuckets) {
+            if (bucket.isInRollout(10)) {
+                counts[(int) (bucket.getOffset(SPREAD) * counts.length / SPREAD)]++;
+            }
+        }
+        assertTrue(chiSquared(counts) < CHI_SQUARED_9);
+    }
+
+    @Test
+    public void bucketIsStable() {
+        for (int i = 0; i < 100; i++) {
+            ClientBucket bucket = new ClientBucket(sIds[i]);
+            assertEquals(sBuckets[i].getPercentile(), bucket.getPercentile());
+            assertEquals(sBuckets[i].getOffset(SPREAD), bucket.getOffset(SPREAD));
+        }
+    }
+
+    private static double chiSquared(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        double expected = total / (double) counts.length;
+        double chiSquared = 0;
+        for (int count : counts) {
+            chiSquared += (count - expected) * (count - expected) / expected;
+        }
+        return chiSquared;
+    }
+}
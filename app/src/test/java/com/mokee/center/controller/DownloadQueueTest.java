@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import com.mokee.center.controller.DownloadQueue.Conditions;
+import com.mokee.center.model.QueuedDownload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queue order, persistence across restarts and the conditions entries run under.
+ */
+public class DownloadQueueTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void orderedByPriorityThenQueueOrder() throws IOException {
+        DownloadQueue queue = new DownloadQueue(mFolder.newFile());
+        queue.put(entry("a", QueuedDownload.PRIORITY_NORMAL));
+        queue.put(entry("b", QueuedDownload.PRIORITY_LOW));
+        queue.put(entry("c", QueuedDownload.PRIORITY_HIGH));
+        queue.put(entry("d", QueuedDownload.PRIORITY_NORMAL));
+
+        assertEquals(Arrays.asList("c", "a", "d", "b"), ids(queue.getOrdered()));
+    }
+
+    @Test
+    public void replacedEntryKeepsItsPlace() throws IOException {
+        DownloadQueue queue = new DownloadQueue(mFolder.newFile());
+        queue.put(entry("a", QueuedDownload.PRIORITY_NORMAL));
+        queue.put(entry("b", QueuedDownload.PRIORITY_NORMAL));
+        queue.put(new QueuedDownload.Builder()
+                .setDownloadId("a")
+                .setConstraints(QueuedDownload.CONSTRAINT_CHARGING)
+                .build());
+
+        assertEquals(Arrays.asList("a", "b"), ids(queue.getOrdered()));
+        assertTrue(queue.get("a").hasConstraint(QueuedDownload.CONSTRAINT_CHARGING));
+    }
+
+    @Test
+    public void survivesRestart() throws IOException {
+        File file = mFolder.newFile();
+        DownloadQueue queue = new DownloadQueue(file);
+        queue.put(entry("a", QueuedDownload.PRIORITY_NORMAL));
+        queue.put(new QueuedDownload.Builder()
+                .setDownloadId("b")
+                .setConstraints(QueuedDownload.CONSTRAINT_UNMETERED)
+                .setWindow(60, 360)
+                .build());
+        queue.put(entry("c", QueuedDownload.PRIORITY_NORMAL));
+        queue.remove("a");
+        queue.get("c").setPaused(true);
+        queue.save();
+
+        DownloadQueue restored = new DownloadQueue(file);
+        assertNull(restored.get("a"));
+        assertEquals(Arrays.asList("b", "c"), ids(restored.getOrdered()));
+        QueuedDownload b = restored.get("b");
+        assertTrue(b.hasConstraint(QueuedDownload.CONSTRAINT_UNMETERED));
+        assertEquals(60, b.getWindowStart());
+        assertEquals(360, b.getWindowEnd());
+        assertTrue(restored.get("c").isPaused());
+
+        // Entries queued after the restart still go after the restored ones
+        restored.put(entry("d", QueuedDownload.PRIORITY_NORMAL));
+        assertEquals(Arrays.asList("b", "c", "d"), ids(restored.getOrdered()));
+    }
+
+    @Test
+    public void missingFileIsEmptyQueue() {
+        DownloadQueue queue = new DownloadQueue(new File(mFolder.getRoot(), "queue"));
+        assertTrue(queue.getOrdered().isEmpty());
+    }
+
+    @Test
+    public void constraintsMustAllHold() {
+        QueuedDownload entry = new QueuedDownload.Builder()
+                .setDownloadId("a")
+                .setConstraints(QueuedDownload.CONSTRAINT_UNMETERED | QueuedDownload.CONSTRAINT_IDLE)
+                .build();
+
+        assertTrue(new Conditions(true, false, true, 0).allow(entry));
+        assertFalse(new Conditions(false, true, true, 0).allow(entry));
+        assertFalse(new Conditions(true, true, false, 0).allow(entry));
+    }
+
+    @Test
+    public void windowMayWrapAroundMidnight() {
+        // 23:00 to 07:00
+        QueuedDownload entry = windowed(23 * 60, 7 * 60);
+
+        assertTrue(new Conditions(true, true, true, 23 * 60).allow(entry));
+        assertTrue(new Conditions(true, true, true, 3 * 60).allow(entry));
+        assertFalse(new Conditions(true, true, true, 7 * 60).allow(entry));
+        assertFalse(new Conditions(true, true, true, 12 * 60).allow(entry));
+    }
+
+    @Test
+    public void nextWindowChangeIsNearestBoundary() {
+        // Outside of the first window, inside of the second
+        List<QueuedDownload> entries = Arrays.asList(windowed(2 * 60, 6 * 60), windowed(60, 3 * 60));
+        Conditions conditions = new Conditions(true, true, true, 90);
+
+        // The first opens at 02:00, before the second closes at 03:00
+        assertEquals(30 * MINUTE, conditions.getNextWindowChange(entries));
+    }
+
+    @Test
+    public void nextWindowChangeWrapsAroundMidnight() {
+        List<QueuedDownload> entries = Collections.singletonList(windowed(60, 3 * 60));
+
+        // Closed since 03:00, opens again tomorrow at 01:00
+        assertEquals(150 * MINUTE, new Conditions(true, true, true, 22 * 60 + 30).getNextWindowChange(entries));
+        // Open since 23:00, closes at 07:00
+        entries = Collections.singletonList(windowed(23 * 60, 7 * 60));
+        assertEquals(8 * 60 * MINUTE, new Conditions(true, true, true, 23 * 60).getNextWindowChange(entries));
+    }
+
+    @Test
+    public void nextWindowChangeSkipsPausedAndUnwindowed() {
+        QueuedDownload paused = windowed(2 * 60, 6 * 60);
+        paused.setPaused(true);
+        List<QueuedDownload> entries = Arrays.asList(paused, entry("a", QueuedDownload.PRIORITY_HIGH));
+
+        assertEquals(-1, new Conditions(true, true, true, 90).getNextWindowChange(entries));
+        assertEquals(-1, new Conditions(true, true, true, 90).getNextWindowChange(new ArrayList<>()));
+    }
+
+    @Test
+    public void nextWindowChangeIsNeverImmediate() {
+        // An empty window is never open, its start is right now
+        List<QueuedDownload> entries = Collections.singletonList(windowed(600, 600));
+
+        assertEquals(MINUTE, new Conditions(true, true, true, 600).getNextWindowChange(entries));
+    }
+
+    private static QueuedDownload entry(String downloadId, int priority) {
+        return new QueuedDownload.Builder()
+                .setDownloadId(downloadId)
+                .setPriority(priority)
+                .build();
+    }
+
+    private static QueuedDownload windowed(int start, int end) {
+        return new QueuedDownload.Builder()
+                .setDownloadId(start + "-" + end)
+                .setWindow(start, end)
+                .build();
+    }
+
+    private static List<String> ids(List<QueuedDownload> entries) {
+        List<String> ids = new ArrayList<>();
+        for (QueuedDownload entry : entries) {
+            ids.add(entry.getDownloadId());
+        }
+        return ids;
+    }
+}
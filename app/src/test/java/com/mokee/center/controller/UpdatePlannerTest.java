@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.controller;
+
+import com.mokee.center.model.UpdateInfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UpdatePlannerTest {
+
+    private static final String INSTALLED = "MK100.0-RELEASE-202006010000-device";
+
+    private static UpdateInfo full(String buildDate, long size) {
+        return new UpdateInfo.Builder()
+                .setName("MK100.0-RELEASE-" + buildDate + "-device")
+                .setFileSize(size)
+                .build();
+    }
+
+    private static UpdateInfo incremental(String sourceBuildDate, String buildDate, long size) {
+        return new UpdateInfo.Builder()
+                .setName("OTA-MK100.0-RELEASE-" + sourceBuildDate + "-" + buildDate + "-device")
+                .setFileSize(size)
+                .build();
+    }
+
+    @Test
+    public void nothingNewer() {
+        assertNull(UpdatePlanner.plan(INSTALLED, Collections.emptyList()));
+        assertNull(UpdatePlanner.plan(INSTALLED, Arrays.asList(
+                full("202005010000", 1000),
+                full("202006010000", 1000))));
+    }
+
+    @Test
+    public void fullBuild() {
+        UpdateInfo full = full("202007010000", 1000);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Collections.singletonList(full));
+        assertEquals(Collections.singletonList(full), plan.getSteps());
+        assertEquals(full, plan.getTarget());
+        assertEquals(1000, plan.getTotalSize());
+        assertFalse(plan.isIncremental());
+    }
+
+    @Test
+    public void smallerIncrementalToTheSameBuild() {
+        UpdateInfo full = full("202007010000", 1000);
+        UpdateInfo incremental = incremental("202006010000", "202007010000", 100);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Arrays.asList(full, incremental));
+        assertEquals(Collections.singletonList(incremental), plan.getSteps());
+        assertEquals(100, plan.getTotalSize());
+        assertTrue(plan.isIncremental());
+    }
+
+    @Test
+    public void chainOfIncrementals() {
+        UpdateInfo first = incremental("202006010000", "202007010000", 100);
+        UpdateInfo second = incremental("202007010000", "202008010000", 150);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Arrays.asList(
+                full("202007010000", 1000), second, full("202008010000", 1000), first));
+        assertEquals(Arrays.asList(first, second), plan.getSteps());
+        assertEquals(250, plan.getTotalSize());
+    }
+
+    @Test
+    public void fullBuildWhenTheChainIsLarger() {
+        UpdateInfo full = full("202008010000", 1000);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Arrays.asList(
+                incremental("202006010000", "202007010000", 600),
+                incremental("202007010000", "202008010000", 600),
+                full));
+        assertEquals(Collections.singletonList(full), plan.getSteps());
+    }
+
+    @Test
+    public void fewerStepsWinTies() {
+        UpdateInfo full = full("202008010000", 1000);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Arrays.asList(
+                incremental("202006010000", "202007010000", 500),
+                incremental("202007010000", "202008010000", 500),
+                full));
+        assertEquals(Collections.singletonList(full), plan.getSteps());
+    }
+
+    @Test
+    public void incrementalsFromOtherBuildsAreSkipped() {
+        UpdateInfo full = full("202008010000", 1000);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Arrays.asList(
+                // Older than the installed build
+                incremental("202005010000", "202008010000", 10),
+                // Generated against a build the device never gets to
+                incremental("202006150000", "202008010000", 10),
+                full));
+        assertEquals(Collections.singletonList(full), plan.getSteps());
+    }
+
+    @Test
+    public void newestBuildEvenIfLarger() {
+        UpdateInfo newest = full("202008010000", 1000);
+        UpdatePlanner.Plan plan = UpdatePlanner.plan(INSTALLED, Arrays.asList(
+                full("202007010000", 10), newest));
+        assertEquals(newest, plan.getTarget());
+        assertEquals(1000, plan.getTotalSize());
+    }
+}
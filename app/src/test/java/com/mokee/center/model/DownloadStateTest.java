@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import com.mokee.center.model.DownloadState.Segment;
+import com.mokee.center.util.ResumableMd5;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segment bookkeeping of a download that is written out of order and resumed.
+ */
+public class DownloadStateTest {
+
+    private static final long TOTAL = 1000;
+    private static final long SEGMENT = 300;
+
+    @Test
+    public void segmentsCoverTheFile() {
+        List<Segment> segments = new DownloadState(TOTAL, SEGMENT).getSegments();
+        assertEquals(4, segments.size());
+        long start = 0;
+        for (Segment segment : segments) {
+            assertEquals(start, segment.getStart());
+            assertEquals(start, segment.getPosition());
+            start = segment.getEnd();
+        }
+        // The last segment is shorter
+        assertEquals(TOTAL, start);
+        assertEquals(100, segments.get(3).getEnd() - segments.get(3).getStart());
+    }
+
+    @Test
+    public void segmentAtOffset() {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        assertSame(state.getSegments().get(0), state.getSegmentAt(0));
+        assertSame(state.getSegments().get(0), state.getSegmentAt(299));
+        assertSame(state.getSegments().get(1), state.getSegmentAt(300));
+        assertSame(state.getSegments().get(3), state.getSegmentAt(999));
+    }
+
+    @Test
+    public void rewindBehindDigestRestartsIt() {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        Segment segment = state.getSegmentAt(0);
+        segment.setPosition(200);
+        state.setDigest(digestOf(200));
+
+        state.rewind(segment, 100);
+
+        assertEquals(100, segment.getPosition());
+        assertEquals(0, state.getDigest().getCount());
+    }
+
+    @Test
+    public void rewindAheadOfDigestKeepsIt() {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        state.getSegmentAt(0).setPosition(SEGMENT);
+        Segment segment = state.getSegmentAt(SEGMENT);
+        segment.setPosition(500);
+        ResumableMd5 digest = digestOf(SEGMENT);
+        state.setDigest(digest);
+
+        state.rewind(segment, 400);
+
+        assertEquals(400, segment.getPosition());
+        assertSame(digest, state.getDigest());
+        // Rewinding exactly to the end of the digest does not discard hashed bytes either
+        state.rewind(segment, SEGMENT);
+        assertSame(digest, state.getDigest());
+    }
+
+    @Test
+    public void sizesFollowSegments() {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        state.getSegmentAt(0).setPosition(100);
+        state.getSegmentAt(600).setPosition(750);
+
+        assertEquals(250, state.getDownloadedSize());
+        assertEquals(750, state.getWrittenLength());
+        assertFalse(state.isComplete());
+    }
+
+    @Test
+    public void repairsAreDownloadedAgain() {
+        DownloadState state = completed();
+        assertTrue(state.isComplete());
+        assertNotNull(state.getMd5());
+
+        state.addRepair(300, 400);
+        assertEquals(TOTAL - 100, state.getDownloadedSize());
+        assertFalse(state.isComplete());
+        // The digest was taken before the repaired range was written again
+        assertNull(state.getMd5());
+
+        state.getRepairs().get(0).setPosition(400);
+        assertEquals(TOTAL, state.getDownloadedSize());
+        assertTrue(state.isComplete());
+    }
+
+    @Test
+    public void md5OnlyOnceEverythingIsHashed() {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        state.setDigest(digestOf(TOTAL - 1));
+        assertNull(state.getMd5());
+        state.setDigest(digestOf(TOTAL));
+        assertEquals(digestOf(TOTAL).hexDigest(), state.getMd5());
+    }
+
+    @Test
+    public void resumesAfterRoundTrip() throws Exception {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        state.getSegmentAt(0).setPosition(SEGMENT);
+        state.getSegmentAt(SEGMENT).setPosition(450);
+        state.setDigest(digestOf(SEGMENT));
+        state.addRepair(10, 20);
+        state.setChecked(true);
+
+        DownloadState restored = roundTrip(state);
+
+        assertEquals(TOTAL, restored.getTotalSize());
+        assertEquals(4, restored.getSegments().size());
+        assertEquals(SEGMENT, restored.getSegmentAt(0).getPosition());
+        assertEquals(450, restored.getSegmentAt(SEGMENT).getPosition());
+        assertEquals(SEGMENT, restored.getDigest().getCount());
+        assertEquals(1, restored.getRepairs().size());
+        assertEquals(state.getDownloadedSize(), restored.getDownloadedSize());
+        // Written data has to be checked again after a restart
+        assertFalse(restored.isChecked());
+
+        // Rewinding the restored state still restarts the digest
+        restored.rewind(restored.getSegmentAt(0), 0);
+        assertEquals(0, restored.getDigest().getCount());
+    }
+
+    private static DownloadState completed() {
+        DownloadState state = new DownloadState(TOTAL, SEGMENT);
+        for (Segment segment : state.getSegments()) {
+            segment.setPosition(segment.getEnd());
+        }
+        state.setDigest(digestOf(TOTAL));
+        return state;
+    }
+
+    private static ResumableMd5 digestOf(long length) {
+        ResumableMd5 digest = new ResumableMd5();
+        digest.update(new byte[(int) length], 0, (int) length);
+        return digest;
+    }
+
+    private static DownloadState roundTrip(DownloadState state) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(state);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (DownloadState) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.model;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParsedVersionTest {
+
+    private static final String FULL = "MK100.0-RELEASE-202007010000-device";
+    private static final String INCREMENTAL = "OTA-MK100.0-RELEASE-202006010000-202007010000-device";
+
+    @Test
+    public void parsesFullBuilds() {
+        ParsedVersion version = ParsedVersion.parse(FULL);
+        assertFalse(version.isIncremental());
+        assertEquals("MK100.0", version.getReleaseVersion());
+        assertEquals(100.0f, version.getReleaseCode(), 0);
+        assertEquals(202007010000L, version.getBuildDate());
+        assertEquals(0, version.getSourceBuildDate());
+    }
+
+    @Test
+    public void parsesIncrementalUpdates() {
+        ParsedVersion version = ParsedVersion.parse(INCREMENTAL);
+        assertTrue(version.isIncremental());
+        assertEquals("MK100.0", version.getReleaseVersion());
+        assertEquals(202007010000L, version.getBuildDate());
+        assertEquals(202006010000L, version.getSourceBuildDate());
+    }
+
+    @Test
+    public void malformedDatesAreZero() {
+        assertEquals(0, ParsedVersion.parse("MK100.0-RELEASE-nightly-device").getBuildDate());
+    }
+
+    @Test
+    public void newestBuildFirstWithinARelease() {
+        ParsedVersion older = ParsedVersion.parse("MK100.0-RELEASE-202006010000-device");
+        ParsedVersion newer = ParsedVersion.parse(FULL);
+        ParsedVersion nextRelease = ParsedVersion.parse("MK110.0-RELEASE-202001010000-device");
+        assertTrue(newer.compareTo(older) < 0);
+        assertTrue(older.compareTo(nextRelease) < 0);
+    }
+
+    @Test
+    public void fullAndIncrementalToTheSameBuildAreDistinct() {
+        ParsedVersion full = ParsedVersion.parse(FULL);
+        ParsedVersion incremental = ParsedVersion.parse(INCREMENTAL);
+        assertTrue(full.compareTo(incremental) != 0);
+        assertEquals(-Integer.signum(full.compareTo(incremental)),
+                Integer.signum(incremental.compareTo(full)));
+        assertEquals(0, full.compareTo(ParsedVersion.parse(FULL)));
+
+        // Keyed like the available updates of the controller
+        Map<String, String> updates = new TreeMap<>((o1, o2) ->
+                ParsedVersion.of(o1).compareTo(ParsedVersion.of(o2)));
+        updates.put(FULL, FULL);
+        updates.put(INCREMENTAL, INCREMENTAL);
+        assertEquals(2, updates.size());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checked against the platform MD5, which cannot be stored and resumed.
+ */
+public class ResumableMd5Test {
+
+    @Test
+    public void matchesMessageDigest() throws NoSuchAlgorithmException {
+        // Around the block size and the length of the padding
+        for (int length : new int[]{0, 1, 55, 56, 63, 64, 65, 119, 120, 128, 1000, 100000}) {
+            byte[] data = randomBytes(length, length);
+            ResumableMd5 md5 = new ResumableMd5();
+            md5.update(data, 0, data.length);
+            assertArrayEquals("length " + length, md5(data), md5.digest());
+        }
+    }
+
+    @Test
+    public void chunkingDoesNotMatter() throws NoSuchAlgorithmException {
+        byte[] data = randomBytes(10000, 42);
+        Random random = new Random(7);
+        ResumableMd5 md5 = new ResumableMd5();
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(random.nextInt(200), data.length - offset);
+            md5.update(data, offset, length);
+            offset += length;
+        }
+        assertEquals(data.length, md5.getCount());
+        assertArrayEquals(md5(data), md5.digest());
+    }
+
+    @Test
+    public void resumesAfterRoundTrip() throws Exception {
+        byte[] data = randomBytes(5000, 43);
+        // Stops in the middle of a block, so the buffered bytes have to survive too
+        int split = 2021;
+        ResumableMd5 md5 = new ResumableMd5();
+        md5.update(data, 0, split);
+
+        ResumableMd5 restored = roundTrip(md5);
+        assertEquals(split, restored.getCount());
+        restored.update(data, split, data.length - split);
+        assertArrayEquals(md5(data), restored.digest());
+    }
+
+    @Test
+    public void copyIsIndependent() throws NoSuchAlgorithmException {
+        byte[] data = randomBytes(300, 44);
+        ResumableMd5 md5 = new ResumableMd5();
+        md5.update(data, 0, 100);
+        ResumableMd5 copy = md5.copy();
+        copy.update(data, 100, 200);
+
+        assertEquals(100, md5.getCount());
+        assertArrayEquals(md5(Arrays.copyOf(data, 100)), md5.digest());
+        assertArrayEquals(md5(data), copy.digest());
+    }
+
+    @Test
+    public void digestLeavesStateUntouched() throws NoSuchAlgorithmException {
+        byte[] data = randomBytes(200, 45);
+        ResumableMd5 md5 = new ResumableMd5();
+        md5.update(data, 0, 70);
+        md5.digest();
+        md5.update(data, 70, 130);
+        assertArrayEquals(md5(data), md5.digest());
+    }
+
+    private static ResumableMd5 roundTrip(ResumableMd5 md5) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(md5);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (ResumableMd5) in.readObject();
+        }
+    }
+
+    private static byte[] md5(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.center.util;
+
+import com.lzy.okgo.model.HttpHeaders;
+import com.lzy.okgo.utils.HttpUtils;
+import com.mokee.center.FakeContext;
+import com.mokee.center.model.UpdateInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Conditional fetches of the update list against a server that answers with 304 while
+ * the list does not change.
+ */
+public class UpdateListCallbackTest {
+
+    private static final String REQUEST_KEY = "d41d8cd98f00b204e9800998ecf8427e";
+    private static final String E_TAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 01 Jul 2020 00:00:00 GMT";
+    private static final String LIST = "[{\"name\":\"MK100.0-RELEASE-202007010000-device\","
+            + "\"md5\":\"d41d8cd98f00b204e9800998ecf8427e\",\"diff\":1,\"length\":1024,"
+            + "\"timestamp\":1593561600,\"url\":\"https://download.mokeedev.com/a.zip\"}]";
+    private static final String UPDATE = "{\"name\":\"%s\",\"md5\":\"d41d8cd98f00b204e9800998ecf8427e\","
+            + "\"diff\":1,\"length\":1024,\"timestamp\":1593561600,\"url\":\"https://download.mokeedev.com/a.zip\"}";
+
+    private final OkHttpClient mClient = new OkHttpClient();
+    private final MockWebServer mServer = new MockWebServer();
+    private FakeContext mContext;
+    private String mList = LIST;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (E_TAG.equals(request.getHeader(HttpHeaders.HEAD_KEY_IF_NONE_MATCH))) {
+                    return new MockResponse().setResponseCode(304);
+                }
+                return new MockResponse()
+                        .setHeader(HttpHeaders.HEAD_KEY_E_TAG, E_TAG)
+                        .setHeader(HttpHeaders.HEAD_KEY_LAST_MODIFIED, LAST_MODIFIED)
+                        .setBody(mList);
+            }
+        });
+        mServer.start();
+        mContext = new FakeContext();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void refetchOfStoredListIsNotModified() throws Throwable {
+        UpdateListCallback first = newCallback(REQUEST_KEY);
+        Response response = fetch(first.getValidators(true));
+        assertNull(mServer.takeRequest().getHeader(HttpHeaders.HEAD_KEY_IF_NONE_MATCH));
+        assertEquals(1, first.convertResponse(response).size());
+        first.saveValidators();
+
+        UpdateListCallback second = newCallback(REQUEST_KEY);
+        response = fetch(second.getValidators(true));
+        RecordedRequest request = mServer.takeRequest();
+        assertEquals(E_TAG, request.getHeader(HttpHeaders.HEAD_KEY_IF_NONE_MATCH));
+        assertEquals(LAST_MODIFIED, request.getHeader(HttpHeaders.HEAD_KEY_IF_MODIFIED_SINCE));
+        assertEquals(304, response.code());
+        assertNull(second.convertResponse(response));
+    }
+
+    @Test
+    public void differentRequestFetchesWholeList() throws Throwable {
+        storeValidators();
+
+        UpdateListCallback callback = newCallback("0cc175b9c0f1b6a831c399e269772661");
+        assertTrue(callback.getValidators(true).headersMap.isEmpty());
+        assertEquals(1, callback.convertResponse(fetch(callback.getValidators(true))).size());
+    }
+
+    @Test
+    public void missingListFetchesWholeList() throws Throwable {
+        storeValidators();
+
+        UpdateListCallback callback = newCallback(REQUEST_KEY);
+        assertTrue(callback.getValidators(false).headersMap.isEmpty());
+        assertEquals(1, callback.convertResponse(fetch(callback.getValidators(false))).size());
+    }
+
+    @Test
+    public void malformedNameIsSkipped() throws Throwable {
+        mList = "[" + String.format(UPDATE, "MK100.0-RELEASE-202007010000-device") + ","
+                + String.format(UPDATE, "MK100.0-RELEASE") + ","
+                + String.format(UPDATE, "MK100.0-RELEASE-202006010000-device") + "]";
+
+        UpdateListCallback callback = newCallback(REQUEST_KEY);
+        LinkedList<UpdateInfo> updates = callback.convertResponse(fetch(callback.getValidators(false)));
+        assertEquals(2, updates.size());
+        assertEquals("MK100.0-RELEASE-202007010000-device", updates.get(0).getName());
+        assertEquals("MK100.0-RELEASE-202006010000-device", updates.get(1).getName());
+    }
+
+    private void storeValidators() throws Throwable {
+        UpdateListCallback callback = newCallback(REQUEST_KEY);
+        callback.convertResponse(fetch(callback.getValidators(true)));
+        callback.saveValidators();
+    }
+
+    private Response fetch(HttpHeaders validators) throws IOException {
+        Request.Builder builder = new Request.Builder().url(mServer.url("/updates"));
+        return mClient.newCall(HttpUtils.appendHeaders(builder, validators).build()).execute();
+    }
+
+    private UpdateListCallback newCallback(String requestKey) {
+        UpdateListCallback callback = new UpdateListCallback(mContext) {
+            @Override
+            public void onSuccess(com.lzy.okgo.model.Response<LinkedList<UpdateInfo>> response) {
+            }
+        };
+        callback.setRequestKey(requestKey);
+        return callback;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mokee.center.benchmark;
+
+import com.mokee.center.misc.CatalogFile;
+import com.mokee.center.misc.State;
+import com.mokee.center.model.UpdateInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing and loading the cached update list, against the Java serialization it
+ * was stored with before.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatalogBenchmark {
+
+    @Param({"100", "10000"})
+    public int count;
+
+    private LinkedList<UpdateInfo> mUpdates;
+    private File mSaved;
+    private File mLoaded;
+    private File mSerialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        mUpdates = Updates.updates(count);
+        mSaved = File.createTempFile("catalog", null);
+        mLoaded = File.createTempFile("catalog", null);
+        State.saveState(mUpdates, mLoaded);
+        mSerialized = File.createTempFile("serialized", null);
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(mSerialized))) {
+            oos.writeObject(mUpdates);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSaved.delete();
+        mLoaded.delete();
+        mSerialized.delete();
+    }
+
+    /**
+     * Builds the catalog in memory, without touching the disk.
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        return CatalogFile.encode(mUpdates);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(mUpdates);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the catalog and waits for it to reach the storage, which usually takes
+     * longer than encoding it.
+     */
+    @Benchmark
+    public void save() {
+        State.saveState(mUpdates, mSaved);
+    }
+
+    @Benchmark
+    public void saveSerialized() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mSaved)) {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(mUpdates);
+            oos.flush();
+            out.getFD().sync();
+        }
+    }
+
+    @Benchmark
+    public LinkedList<UpdateInfo> load() {
+        return State.loadState(mLoaded);
+    }
+
+    @Benchmark
+    public Object loadSerialized() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(mSerialized))) {
+            return ois.readObject();
+        }
+    }
+
+    /**
+     * Looks up a single update without decoding the others.
+     */
+    @Benchmark
+    public UpdateInfo readOne() throws IOException {
+        CatalogFile.Reader reader = CatalogFile.open(mLoaded);
+        return reader.get(reader.size() / 2);
+    }
+}
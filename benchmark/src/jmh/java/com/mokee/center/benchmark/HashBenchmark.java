@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mokee.center.benchmark;
+
+import com.mokee.center.util.FileHasher;
+import com.mokee.center.util.ResumableMd5;
+import com.mokee.center.util.StreamUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checksumming downloaded packages. The files are filled with random data once per
+ * trial and are likely served from the page cache, so this measures hashing rather
+ * than the disk. Pass -p sizeMb=4096 for packages of a few GB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"256"})
+    public int sizeMb;
+
+    private File mFile;
+    private File mOtherFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = createPackage(sizeMb, 42);
+        mOtherFile = createPackage(sizeMb, 43);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+        mOtherFile.delete();
+    }
+
+    /**
+     * The stream based hashing the app used before.
+     */
+    @Benchmark
+    public String streamMd5() throws IOException {
+        return StreamUtil.calculateMd5(new FileInputStream(mFile));
+    }
+
+    @Benchmark
+    public String md5() throws IOException {
+        return FileHasher.hash(mFile, null, FileHasher.MD5).get(FileHasher.MD5);
+    }
+
+    /**
+     * The checkpointable MD5 of segmented downloads, reading the file back in the 64 KB
+     * chunks a download with several connections uses. Compare with {@link #md5()}.
+     */
+    @Benchmark
+    public String resumableMd5() throws IOException {
+        ResumableMd5 digest = new ResumableMd5();
+        byte[] buffer = new byte[64 * 1024];
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(ByteBuffer.wrap(buffer), digest.getCount())) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.hexDigest();
+    }
+
+    @Benchmark
+    public FileHasher.Result allDigests() throws IOException {
+        return FileHasher.hash(mFile, null, FileHasher.MD5, FileHasher.SHA_1, FileHasher.SHA_256);
+    }
+
+    /**
+     * Hashes two packages at once on the pool.
+     */
+    @Benchmark
+    public String twoFiles() throws ExecutionException, InterruptedException {
+        Future<FileHasher.Result> first = FileHasher.submit(mFile, null, FileHasher.MD5);
+        Future<FileHasher.Result> second = FileHasher.submit(mOtherFile, null, FileHasher.MD5);
+        return first.get().get(FileHasher.MD5) + second.get().get(FileHasher.MD5);
+    }
+
+    private static File createPackage(int sizeMb, long seed) throws IOException {
+        File file = File.createTempFile("package", ".zip");
+        Random random = new Random(seed);
+        byte[] chunk = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(chunk);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mokee.center.benchmark;
+
+import com.mokee.center.model.UpdateInfo;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic update lists that look like what the server sends: full builds of two
+ * releases, one a day, with an incremental update between every two of them.
+ */
+final class Updates {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'0000'");
+    private static final LocalDate FIRST_BUILD = LocalDate.of(2019, 1, 1);
+
+    private Updates() {
+    }
+
+    /**
+     * @return the names of count updates, in random but reproducible order
+     */
+    static List<String> names(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; names.size() < count; i++) {
+            String release = i % 2 == 0 ? "MK90.0" : "MK100.0";
+            String date = DATE_FORMAT.format(FIRST_BUILD.plusDays(i));
+            names.add(release + "-RELEASE-" + date + "-bench");
+            if (i > 0 && names.size() < count) {
+                String source = DATE_FORMAT.format(FIRST_BUILD.plusDays(i - 1));
+                names.add("OTA-" + release + "-RELEASE-" + source + "-" + date + "-bench");
+            }
+        }
+        Collections.shuffle(names, new Random(42));
+        return names;
+    }
+
+    static LinkedList<UpdateInfo> updates(int count) {
+        LinkedList<UpdateInfo> updates = new LinkedList<>();
+        for (String name : names(count)) {
+            updates.add(new UpdateInfo.Builder()
+                    .setName(name)
+                    .setMD5Sum("d41d8cd98f00b204e9800998ecf8427e")
+                    .setDiffSize(name.startsWith("OTA") ? 0 : 1)
+                    .setFileSize(1500L * 1024 * 1024)
+                    .setTimestamp(1577836800L)
+                    .setDownloadUrl("https://download.mokeedev.com/" + name + ".zip")
+                    .setBlockManifestUrl("https://download.mokeedev.com/" + name + ".blocks")
+                    .build());
+        }
+        return updates;
+    }
+
+    /**
+     * @return the update list as the server sends it
+     */
+    static String json(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (UpdateInfo update : updates(count)) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(update.getName())
+                    .append("\",\"md5\":\"").append(update.getMd5())
+                    .append("\",\"diff\":").append(update.getDiffSize())
+                    .append(",\"length\":").append(update.getFileSize())
+                    .append(",\"timestamp\":").append(update.getTimestamp())
+                    .append(",\"url\":\"").append(update.getDownloadUrl())
+                    .append("\",\"blocks\":\"").append(update.getBlockManifestUrl())
+                    .append("\"}");
+        }
+        return json.append(']').toString();
+    }
+}
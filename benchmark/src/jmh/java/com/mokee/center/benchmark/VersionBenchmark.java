@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mokee.center.benchmark;
+
+import android.content.Context;
+
+import com.mokee.center.model.ParsedVersion;
+import com.mokee.center.model.UpdateInfo;
+import com.mokee.center.util.BuildInfoUtil;
+import com.mokee.os.Build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing, sorting and filtering update names, as done for every fetched list. The
+ * legacy variants split the names again for every comparison and parse the build dates
+ * with a new SimpleDateFormat, like before names were parsed into a ParsedVersion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VersionBenchmark {
+
+    @Param({"100", "1000"})
+    public int count;
+
+    private final Context mContext = new Context() {
+    };
+    private List<String> mNames;
+    private List<UpdateInfo> mUpdates;
+
+    @Setup
+    public void setUp() {
+        mNames = Updates.names(count);
+        mUpdates = Updates.updates(count);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        for (String name : mNames) {
+            blackhole.consume(ParsedVersion.parse(name));
+        }
+    }
+
+    /**
+     * Sorts a list like a freshly fetched one.
+     */
+    @Benchmark
+    public List<UpdateInfo> sort() {
+        List<UpdateInfo> updates = new ArrayList<>(mUpdates);
+        Collections.sort(updates, (o1, o2) -> o1.getVersion().compareTo(o2.getVersion()));
+        return updates;
+    }
+
+    @Benchmark
+    public List<UpdateInfo> sortLegacy() {
+        List<UpdateInfo> updates = new ArrayList<>(mUpdates);
+        Collections.sort(updates, (o1, o2) -> legacyCompare(o1.getName(), o2.getName()));
+        return updates;
+    }
+
+    /**
+     * Fills a map keyed by name, like the available updates of the controller.
+     */
+    @Benchmark
+    public Map<String, UpdateInfo> treeMap() {
+        Map<String, UpdateInfo> updates = new TreeMap<>(
+                (o1, o2) -> ParsedVersion.of(o1).compareTo(ParsedVersion.of(o2)));
+        for (UpdateInfo update : mUpdates) {
+            updates.put(update.getName(), update);
+        }
+        return updates;
+    }
+
+    /**
+     * A full build and an incremental update to it compare equal here, so the map ends
+     * up with about half the entries, as the controller used to.
+     */
+    @Benchmark
+    public Map<String, UpdateInfo> treeMapLegacy() {
+        Map<String, UpdateInfo> updates = new TreeMap<>(VersionBenchmark::legacyCompare);
+        for (UpdateInfo update : mUpdates) {
+            updates.put(update.getName(), update);
+        }
+        return updates;
+    }
+
+    /**
+     * Titles of all updates, as shown in the list.
+     */
+    @Benchmark
+    public void displayVersion(Blackhole blackhole) {
+        for (UpdateInfo update : mUpdates) {
+            blackhole.consume(update.getDisplayVersion(mContext));
+        }
+    }
+
+    @Benchmark
+    public int filterCompatible() {
+        int compatible = 0;
+        for (UpdateInfo update : mUpdates) {
+            if (BuildInfoUtil.isCompatible(update.getVersion())) {
+                compatible++;
+            }
+        }
+        return compatible;
+    }
+
+    @Benchmark
+    public int filterCompatibleLegacy() {
+        int compatible = 0;
+        for (UpdateInfo update : mUpdates) {
+            if (legacyIsCompatible(update.getName())) {
+                compatible++;
+            }
+        }
+        return compatible;
+    }
+
+    private static int legacyCompare(String o1, String o2) {
+        float codeo1 = legacyReleaseCode(o1);
+        float codeo2 = legacyReleaseCode(o2);
+        if (codeo2 - codeo1 == 0) {
+            return Long.compare(legacyBuildDate(o2), legacyBuildDate(o1));
+        } else {
+            return Float.compare(codeo1, codeo2);
+        }
+    }
+
+    private static boolean legacyIsCompatible(String version) {
+        return BuildInfoUtil.getTimeStamp(String.valueOf(legacyBuildDate(version)))
+                > BuildInfoUtil.getTimeStamp(String.valueOf(legacyBuildDate(Build.VERSION)));
+    }
+
+    private static long legacyBuildDate(String version) {
+        String[] info = version.split("-");
+        String date = legacyIsIncremental(version) ? info[4] : info[2];
+        for (int i = 0; i < date.length(); i++) {
+            if (!Character.isDigit(date.charAt(i))) {
+                return 0;
+            }
+        }
+        return Long.valueOf(date);
+    }
+
+    private static float legacyReleaseCode(String version) {
+        String[] info = version.split("-");
+        String code = legacyIsIncremental(version) ? info[1] : info[0];
+        if (!code.toLowerCase(Locale.ENGLISH).startsWith("mk")) {
+            return 0;
+        } else {
+            return Float.valueOf(code.substring(2, code.length()));
+        }
+    }
+
+    private static boolean legacyIsIncremental(String version) {
+        return version.toLowerCase(Locale.ENGLISH).startsWith("ota");
+    }
+}
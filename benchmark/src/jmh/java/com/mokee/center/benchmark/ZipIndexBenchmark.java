@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mokee.center.benchmark;
+
+import com.mokee.center.util.ZipIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finding the payload in an A/B package. The packages are sparse files, so the
+ * multi-GB ones take no disk space. The legacy variants open the package with
+ * {@link ZipFile} and walk its entries, like before the central directory was read
+ * into a ZipIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipIndexBenchmark {
+
+    private static final String PAYLOAD = "payload.bin";
+    private static final String PROPERTIES = "payload_properties.txt";
+
+    @Param({"1", "6"})
+    public int sizeGb;
+
+    private File mFile;
+    private FileChannel mChannel;
+    private ZipIndex.Source mSource;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("package", ".zip");
+        writeSparsePackage(mFile, sizeGb * 1024L * 1024 * 1024);
+        mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ);
+        mSource = new ZipIndex.Source() {
+            @Override
+            public long size() throws IOException {
+                return mChannel.size();
+            }
+
+            @Override
+            public void readFully(ByteBuffer buffer, long position) throws IOException {
+                while (buffer.hasRemaining()) {
+                    if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mChannel.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long payloadOffset() throws IOException {
+        return ZipIndex.read(mSource).getDataOffset(PAYLOAD);
+    }
+
+    @Benchmark
+    public long payloadOffsetLegacy() throws IOException {
+        try (ZipFile zipFile = new ZipFile(mFile)) {
+            return legacyEntryOffset(zipFile, PAYLOAD);
+        }
+    }
+
+    @Benchmark
+    public boolean isABUpdate() throws IOException {
+        return ZipIndex.read(mSource).hasEntries(PAYLOAD, PROPERTIES);
+    }
+
+    @Benchmark
+    public boolean isABUpdateLegacy() throws IOException {
+        try (ZipFile zipFile = new ZipFile(mFile)) {
+            return zipFile.getEntry(PAYLOAD) != null && zipFile.getEntry(PROPERTIES) != null;
+        }
+    }
+
+    /**
+     * Adds up the local headers and data of all entries before the given one, assuming
+     * every local header has the same extra field as its central directory entry.
+     */
+    private static long legacyEntryOffset(ZipFile zipFile, String name) {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        long offset = 0;
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            int extraLength = entry.getExtra() == null ? 0 : entry.getExtra().length;
+            offset += 30 + entry.getName().length() + extraLength;
+            if (entry.getName().equals(name)) {
+                return offset;
+            }
+            offset += entry.getCompressedSize();
+        }
+        throw new IllegalArgumentException("The given entry was not found");
+    }
+
+    /**
+     * Writes a zip64 package with a stored payload of the given size, which is left
+     * as a hole, followed by the payload properties.
+     */
+    private static void writeSparsePackage(File file, long payloadSize) throws IOException {
+        byte[] payloadName = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+        byte[] propertiesName = PROPERTIES.getBytes(StandardCharsets.UTF_8);
+        byte[] properties = "FILE_SIZE=0\n".getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // Payload: sizes in the zip64 extra field
+            localHeader(buffer, payloadName, 0xffffffffL, 20);
+            buffer.putShort((short) 0x0001).putShort((short) 16).putLong(payloadSize).putLong(payloadSize);
+            long propertiesOffset = buffer.position() + payloadSize;
+            write(channel, buffer, 0);
+
+            localHeader(buffer, propertiesName, properties.length, 0);
+            buffer.put(properties);
+            long directoryOffset = propertiesOffset + buffer.position();
+            write(channel, buffer, propertiesOffset);
+
+            centralHeader(buffer, payloadName, 0xffffffffL, 0, 20);
+            buffer.putShort((short) 0x0001).putShort((short) 16).putLong(payloadSize).putLong(payloadSize);
+            centralHeader(buffer, propertiesName, properties.length, 0xffffffffL, 12);
+            buffer.putShort((short) 0x0001).putShort((short) 8).putLong(propertiesOffset);
+            int directorySize = buffer.position();
+            long zip64EndOffset = directoryOffset + directorySize;
+
+            // Zip64 end of central directory, its locator and the end of central directory
+            buffer.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                    .putInt(0).putInt(0).putLong(2).putLong(2)
+                    .putLong(directorySize).putLong(directoryOffset);
+            buffer.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1);
+            buffer.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 2).putShort((short) 2)
+                    .putInt(directorySize).putInt(0xffffffff).putShort((short) 0);
+            write(channel, buffer, directoryOffset);
+        }
+    }
+
+    private static void localHeader(ByteBuffer buffer, byte[] name, long size, int extraLength) {
+        buffer.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt((int) size).putInt((int) size)
+                .putShort((short) name.length).putShort((short) extraLength).put(name);
+    }
+
+    private static void centralHeader(ByteBuffer buffer, byte[] name, long size, long offset,
+            int extraLength) {
+        buffer.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt((int) size).putInt((int) size)
+                .putShort((short) name.length).putShort((short) extraLength).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) offset).put(name);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package android.icu.text;
+
+import android.icu.util.Measure;
+
+import java.util.Locale;
+
+/**
+ * Stand-in for the Android class, for the benchmarks on a plain JVM.
+ */
+public class MeasureFormat {
+
+    public enum FormatWidth {
+        WIDE, SHORT, NARROW
+    }
+
+    private MeasureFormat() {
+    }
+
+    public static MeasureFormat getInstance(Locale locale, FormatWidth formatWidth) {
+        return new MeasureFormat();
+    }
+
+    public String format(Measure measure) {
+        return measure.toString();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package android.icu.util;
+
+/**
+ * Stand-in for the Android class, for the benchmarks on a plain JVM.
+ */
+public class MeasureUnit {
+
+    public static final MeasureUnit HOUR = new MeasureUnit("h");
+    public static final MeasureUnit MINUTE = new MeasureUnit("min");
+    public static final MeasureUnit SECOND = new MeasureUnit("s");
+
+    private final String mSymbol;
+
+    private MeasureUnit(String symbol) {
+        mSymbol = symbol;
+    }
+
+    @Override
+    public String toString() {
+        return mSymbol;
+    }
+}
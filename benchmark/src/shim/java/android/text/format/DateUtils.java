@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2020 The MoKee Open Source Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package android.text.format;
+
+import android.content.Context;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Stand-in for the Android class, for the benchmarks on a plain JVM. Dates are
+ * formatted with the default locale, like on a device.
+ */
+public class DateUtils {
+
+    public static final int FORMAT_SHOW_YEAR = 0x00004;
+    public static final int FORMAT_SHOW_DATE = 0x00010;
+
+    public static String formatDateTime(Context context, long millis, int flags) {
+        return DateFormat.getDateInstance(DateFormat.MEDIUM).format(new Date(millis));
+    }
+}